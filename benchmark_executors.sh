@@ -0,0 +1,46 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Compares the executor modes of CalculateAverage_gold on ./measurements.txt:
+# platform worker threads, the ForkJoin backed parallel() stream and one
+# virtual thread per chunk.
+#
+# Usage: benchmark_executors.sh [runs] [concurrency]
+
+set -eo pipefail
+
+RUNS=${1:-5}
+CONCURRENCY=${2:-$(nproc)}
+
+if ! [ -x "$(command -v hyperfine)" ]; then
+  echo "Error: hyperfine is not installed." >&2
+  exit 1
+fi
+
+if [ ! -f "measurements.txt" ]; then
+  echo "Error: measurements.txt does not exist." >&2
+  echo "Please create it with:"
+  echo "  ./create_measurements.sh 1000000000"
+  exit 1
+fi
+
+./mvnw --quiet clean verify
+
+hyperfine --warmup 1 --runs $RUNS \
+  -n threads "./calculate_average.sh gold --executor=threads --concurrency=$CONCURRENCY" \
+  -n forkjoin "./calculate_average.sh gold --executor=forkjoin" \
+  -n virtual "./calculate_average.sh gold --executor=virtual --concurrency=$CONCURRENCY"
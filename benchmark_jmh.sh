@@ -0,0 +1,36 @@
+#!/bin/bash
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Builds and runs the JMH benchmarks in src/jmh/java on generated in-memory
+# data, no measurements.txt needed. The defaults (2 forks of 5 warmup and 5
+# measurement iterations) take about 6 minutes. --quick runs a single fork of
+# 1 warmup and 2 measurement iterations in about 1 minute, to check that the
+# benchmarks work, its error bars are meaningless.
+#
+# Usage: benchmark_jmh.sh [--quick] [JMH options, e.g. a benchmark regex like Parser]
+
+set -eo pipefail
+
+JMH_OPTS=""
+if [ "$1" = "--quick" ]; then
+  JMH_OPTS="-f 1 -wi 1 -i 2"
+  shift
+fi
+
+./mvnw --quiet -Pjmh -Dquick clean package
+
+java --enable-preview -jar target/average-1.0.0-SNAPSHOT-benchmarks.jar $JMH_OPTS "$@"
@@ -17,8 +17,14 @@
 
 # JAVA_OPTS="--enable-preview --add-modules jdk.incubator.vector -XX:+UnlockExperimentalVMOptions -Xms500m -Xmx500m -XX:CompilationMode=high-only"
 
-JAVA_OPTS=""
+JAVA_OPTS="--enable-preview"
+# Vector API delimiter scan (falls back to SWAR without the module)
+#JAVA_OPTS="--enable-preview --add-modules jdk.incubator.vector -Donebrc.vector=true"
+# tiny heap without a collector for the scan, with gold --off-heap
+#JAVA_OPTS="--enable-preview -Xms32m -Xmx32m -XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC -XX:+AlwaysPreTouch"
 # debug potions
 #JAVA_OPTS="-agentlib:jdwp=transport=dt_socket,server=y,suspend=y,address=localhost:9090"
-java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_$1
+FORK=$1
+shift
+java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_$FORK "$@"
 
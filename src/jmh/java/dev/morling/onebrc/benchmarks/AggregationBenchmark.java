@@ -0,0 +1,128 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.data.MeasurementAggregation;
+import dev.morling.onebrc.data.PartitionedMerge;
+import dev.morling.onebrc.data.StationTable;
+
+/**
+ * Cost of adding values to and combining aggregates, and of merging the
+ * tables of many chunks with 10k stations.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class AggregationBenchmark {
+    private static final int VALUES = 10_000;
+    private static final int CHUNKS = 32;
+
+    private double[] values;
+    private MeasurementAggregation[] aggregations;
+    private MemorySegment chunk;
+    private List<StationTable> chunkTables;
+
+    @Setup
+    public void setup() {
+        final Random random = new Random(BenchmarkData.SEED);
+        this.values = new double[VALUES];
+        this.aggregations = new MeasurementAggregation[VALUES];
+        for (int i = 0; i < VALUES; i++) {
+            this.values[i] = (random.nextInt(1999) - 999) / 10.0;
+            this.aggregations[i] = new MeasurementAggregation(this.values[i]);
+        }
+
+        this.chunk = MemorySegment.ofArray(BenchmarkData.generate(100_000, 413, BenchmarkData.SEED));
+        this.chunkTables = new ArrayList<>(CHUNKS);
+        for (int i = 0; i < CHUNKS; i++) {
+            final StationTable table = new StationTable();
+            table.addAll(MemorySegment.ofArray(BenchmarkData.generate(20_000, 10_000, BenchmarkData.SEED + i)));
+            this.chunkTables.add(table);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public MeasurementAggregation appendValue() {
+        final MeasurementAggregation aggregation = new MeasurementAggregation(0);
+        for (double value : this.values) {
+            aggregation.appendValue(value);
+        }
+        return aggregation;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public MeasurementAggregation combine() {
+        final MeasurementAggregation aggregation = new MeasurementAggregation(0);
+        for (MeasurementAggregation other : this.aggregations) {
+            aggregation.combine(other);
+        }
+        return aggregation;
+    }
+
+    /**
+     * Parses a chunk into a table, per line.
+     */
+    @Benchmark
+    @OperationsPerInvocation(100_000)
+    public StationTable stationTableAddAll() {
+        final StationTable table = new StationTable();
+        table.addAll(this.chunk);
+        return table;
+    }
+
+    /**
+     * Sequential merge of the chunk tables, like combineMaps used to do.
+     */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public StationTable combineMaps() {
+        final StationTable merged = new StationTable();
+        for (StationTable table : this.chunkTables) {
+            merged.combine(table);
+        }
+        return merged;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<String, MeasurementAggregation> partitionedMerge() {
+        return PartitionedMerge.mergeSorted(this.chunkTables, Runtime.getRuntime().availableProcessors());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Generates measurement lines in memory, so benchmarks don't depend on a
+ * measurements.txt file. The same seed always produces the same bytes.
+ */
+final class BenchmarkData {
+    static final long SEED = 1_000_000_007L;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Returns lines of the form station;value with synthetic station names of 3
+     * to 24 letters plus an index and values in [-99.9, 99.9].
+     *
+     * @param lines -- number of lines
+     * @param stations -- number of distinct stations, the names only depend on
+     *            this number so data generated with different seeds shares them
+     * @param seed -- seed for the order of the stations and the values
+     */
+    static byte[] generate(final int lines, final int stations, final long seed) {
+        final Random nameRandom = new Random(SEED);
+        final byte[][] names = new byte[stations][];
+        for (int i = 0; i < stations; i++) {
+            final StringBuilder name = new StringBuilder();
+            final int length = 3 + nameRandom.nextInt(22);
+            while (name.length() < length) {
+                name.append((char) ('a' + nameRandom.nextInt(26)));
+            }
+            // the index keeps names unique
+            names[i] = (name + "-" + i).getBytes(StandardCharsets.UTF_8);
+        }
+
+        final Random random = new Random(seed);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(lines * 16);
+        for (int i = 0; i < lines; i++) {
+            out.writeBytes(names[random.nextInt(stations)]);
+            final int tenths = random.nextInt(1999) - 999;
+            out.write(';');
+            if (tenths < 0) {
+                out.write('-');
+            }
+            out.writeBytes(Integer.toString(Math.abs(tenths) / 10).getBytes(StandardCharsets.UTF_8));
+            out.write('.');
+            out.write('0' + Math.abs(tenths) % 10);
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.MemorySegment;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dev.morling.onebrc.data.MeasurementAggregation;
+import dev.morling.onebrc.data.PartitionedMerge;
+import dev.morling.onebrc.data.StationTable;
+import dev.morling.onebrc.files.ChunkScheduler;
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * Whole aggregation pipeline over 5M generated lines held in memory, from
+ * chunking to the sorted result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+    private static final long CHUNK_SIZE = 16384L * 1280;
+
+    private MemorySegment data;
+    private int workers;
+
+    @Setup
+    public void setup() {
+        this.data = MemorySegment.ofArray(BenchmarkData.generate(5_000_000, 413, BenchmarkData.SEED));
+        this.workers = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Benchmark
+    public Map<String, MeasurementAggregation> workerThreads() {
+        final List<StationTable> tables = new ChunkScheduler(this.data, CHUNK_SIZE, this.workers).run(StationTable::new, StationTable::addAll);
+        return PartitionedMerge.mergeSorted(tables, this.workers);
+    }
+
+    @Benchmark
+    public Map<String, MeasurementAggregation> forkJoin() {
+        final List<StationTable> tables = FastFiles.segmentChunks(this.data, CHUNK_SIZE)
+                .parallel()
+                .map(chunk -> {
+                    final StationTable table = new StationTable();
+                    table.addAll(chunk);
+                    return table;
+                })
+                .toList();
+        return PartitionedMerge.mergeSorted(tables, this.workers);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.benchmarks;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dev.morling.onebrc.data.MeasurementIterator;
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * Cost per line of scanning and parsing a chunk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "--enable-preview")
+@State(Scope.Thread)
+public class ParserBenchmark {
+    private static final int LINES = 100_000;
+
+    private MemorySegment chunk;
+    private ByteBuffer buffer;
+
+    @Setup
+    public void setup() {
+        final byte[] data = BenchmarkData.generate(LINES, 413, BenchmarkData.SEED);
+        this.chunk = MemorySegment.ofArray(data);
+        this.buffer = ByteBuffer.wrap(data);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void measurementIteratorNext(final Blackhole blackhole) {
+        final MeasurementIterator measurements = new MeasurementIterator(this.chunk);
+        while (measurements.hasNext()) {
+            measurements.next();
+            blackhole.consume(measurements.stationHash());
+            blackhole.consume(measurements.tenths());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public long byteBufferLines() {
+        return FastFiles.lines(this.buffer).count();
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.nio.file.Path;
+
+import dev.morling.onebrc.columnar.ColumnarFile;
+import dev.morling.onebrc.data.ResultWriter;
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * Aggregates measurements.bin, the columnar form of measurements.txt written
+ * by ConvertMeasurements. The output is the same as the one of
+ * CalculateAverage_gold for the text file.
+ */
+public class CalculateAverage_columnar {
+
+    private static final String FILE = "./measurements.bin";
+    private static final String USAGE = """
+            Usage: calculate_average.sh columnar [options] [<columnar file>]
+              the file defaults to ./measurements.bin, see convert_measurements.sh
+              --concurrency=<n>  blocks aggregated at the same time (default: cores)
+            """;
+
+    public static void main(String[] args) throws IOException {
+        Path file = Path.of(FILE);
+        int concurrency = Runtime.getRuntime().availableProcessors();
+        try {
+            boolean fileGiven = false;
+            for (String arg : args) {
+                if (arg.startsWith("--concurrency=")) {
+                    concurrency = positive(arg.substring("--concurrency=".length()));
+                }
+                else if (arg.startsWith("--")) {
+                    // the options of gold don't apply to the columnar format
+                    throw new IllegalArgumentException("Unknown option: " + arg);
+                }
+                else if (fileGiven) {
+                    throw new IllegalArgumentException("Only one columnar file can be read");
+                }
+                else {
+                    file = Path.of(arg);
+                    fileGiven = true;
+                }
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(1);
+            return;
+        }
+
+        try (Arena arena = Arena.ofShared()) {
+            final ColumnarFile columnar = ColumnarFile.open(FastFiles.mapFile(file, arena));
+            columnar.writeResult(columnar.aggregate(concurrency), ResultWriter.stdout());
+        }
+    }
+
+    private static int positive(final String value) {
+        try {
+            final int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for --concurrency: " + value);
+    }
+}
@@ -16,150 +16,415 @@
 package dev.morling.onebrc;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.file.Paths;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.Spliterator;
-import java.util.Spliterators;
-import java.util.TreeMap;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import java.util.stream.StreamSupport;
-
-import dev.morling.onebrc.data.MeasurementAggregation;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+
+import dev.morling.onebrc.data.Checkpoint;
+import dev.morling.onebrc.data.OffHeapStationTable;
+import dev.morling.onebrc.data.Partials;
+import dev.morling.onebrc.data.PartitionedMerge;
+import dev.morling.onebrc.data.ResultCache;
+import dev.morling.onebrc.data.ResultWriter;
+import dev.morling.onebrc.data.StationDictionary;
+import dev.morling.onebrc.data.StationFilter;
+import dev.morling.onebrc.data.StationTable;
+import dev.morling.onebrc.files.BlockGzipReader;
+import dev.morling.onebrc.files.CalibrationProfile;
+import dev.morling.onebrc.files.ChunkScheduler;
+import dev.morling.onebrc.files.ChunkTuning;
 import dev.morling.onebrc.files.FastFiles;
+import dev.morling.onebrc.files.InputFiles;
+import dev.morling.onebrc.files.VirtualChunkExecutor;
+import dev.morling.onebrc.stats.ChunkEvent;
+import dev.morling.onebrc.stats.Stats;
 
 public class CalculateAverage_gold {
 
-  private static final String FILE = "./measurements.txt";
+    private static final String FILE = "./measurements.txt";
+
+    // phase times and chunk counters of this run, printed with --stats
+    private static final Stats STATS = new Stats();
+
+    // --dictionary samples this many slices of this size for the stations of the input
+    private static final int DICTIONARY_SAMPLES = 16;
+    private static final long DICTIONARY_SAMPLE_SIZE = 256 * 1024L;
+
+    // the Stats.Phase of a try-with-resources is only closed, never referenced
+    @SuppressWarnings("try")
+    public static void main(String[] args) throws IOException {
+        final Options options;
+        final List<Path> files;
+        try {
+            options = Options.parse(args);
+            files = InputFiles.resolve(options.inputs.isEmpty() ? List.of(FILE) : options.inputs);
+            if (options.singleFileOnly() && (files.size() > 1 || BlockGzipReader.isGzip(files.get(0)))) {
+                throw new IllegalArgumentException("--follow, --checkpoint and --range need a single, uncompressed input file");
+            }
+        }
+        catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(Options.USAGE);
+            System.exit(1);
+            return;
+        }
+
+        // chunk size and worker count are tuned to the input and this host, a calibration
+        // profile lets the run start at the chunk size an earlier run ended with
+        final Optional<CalibrationProfile> calibration = Optional.ofNullable(options.calibration).map(CalibrationProfile::load);
+        final long calibratedChunkSize = calibration.map(CalibrationProfile::chunkSize).orElse(0L);
+
+        if (options.follow) {
+            follow(files.get(0), calibratedChunkSize, options);
+            return;
+        }
+
+        // a result cached by an earlier run over the same, unchanged files skips the scan
+        final Optional<ResultCache> cache = Optional.ofNullable(options.cache).map(dir -> new ResultCache(dir, options.cacheSize));
+        final String query = cacheQuery(files, options);
+        final Optional<StationTable> cached;
+        try (Stats.Phase phase = STATS.phase("cache")) {
+            cached = cache.flatMap(c -> c.lookup(query, files));
+        }
+
+        final List<StationTable> tables;
+        if (cached.isPresent()) {
+            tables = List.of(cached.get());
+        }
+        else {
+            tables = scan(files, calibration, calibratedChunkSize, options);
+            if (cache.isPresent()) {
+                try (Stats.Phase phase = STATS.phase("cache")) {
+                    final StationTable result = new StationTable();
+                    tables.forEach(result::combine);
+                    cache.get().store(query, files, result);
+                }
+                catch (UncheckedIOException e) {
+                    // the result is printed anyway, the next run only scans again
+                    System.err.println("Can't store the result in " + options.cache + ": " + e.getCause().getMessage());
+                }
+            }
+        }
+
+        if (options.partial != null) {
+            // another process merges the partials, see MergePartials
+            try (Stats.Phase phase = STATS.phase("partial")) {
+                final StationTable partial = new StationTable();
+                tables.forEach(partial::combine);
+                Partials.write(options.partial, partial);
+            }
+        }
+        else {
+            // merge the tables by station shard in parallel, the result is sorted by station name
+            final PartitionedMerge.Shards merged;
+            try (Stats.Phase phase = STATS.phase("merge")) {
+                merged = PartitionedMerge.merge(tables, options.concurrency);
+            }
+            try (Stats.Phase phase = STATS.phase("sort")) {
+                merged.sort();
+            }
+            try (Stats.Phase phase = STATS.phase("print")) {
+                merged.writeTo(ResultWriter.stdout());
+            }
+        }
+
+        if (options.stats) {
+            STATS.print(System.err);
+        }
+    }
+
+    /**
+     * Aggregates the files, resuming from and updating the --checkpoint if
+     * there is one.
+     *
+     * @return the tables of the files
+     */
+    // the Stats.Phase of a try-with-resources is only closed, never referenced
+    @SuppressWarnings("try")
+    private static List<StationTable> scan(final List<Path> files, final Optional<CalibrationProfile> calibration, final long calibratedChunkSize,
+                                           final Options options) {
+        final Optional<Checkpoint> checkpoint = options.checkpoint == null ? Optional.empty() : Checkpoint.load(options.checkpoint, files.get(0));
+        final long from = checkpoint.map(Checkpoint::offset).orElse(0L);
 
-  private static record Measurement(String station, double value) {
-    private Measurement(String[] parts) {
-      this(parts[0], Double.parseDouble(parts[1]));
+        // with a checkpoint only complete lines are aggregated, a partially written last
+        // line is left to the next run
+        final Pass pass = aggregate(files, from, options.checkpoint != null, calibratedChunkSize, options);
+        try {
+            calibration.ifPresent(profile -> profile.save(pass.tuning()));
+        }
+        catch (UncheckedIOException e) {
+            // the next run starts from the last saved calibration
+            System.err.println("Can't store the calibration in " + options.calibration + ": " + e.getCause().getMessage());
+        }
+        if (options.checkpoint == null) {
+            return pass.tables();
+        }
+        else {
+            final StationTable state = checkpoint.map(Checkpoint::table).orElseGet(StationTable::new);
+            pass.tables().forEach(state::combine);
+            try (Stats.Phase phase = STATS.phase("checkpoint")) {
+                new Checkpoint(pass.end(), state).save(options.checkpoint, files.get(0));
+            }
+            return List.of(state);
+        }
     }
-  }
-
-  public static void main(String[] args) throws IOException {
-    // Page size is 16KB. MMap will allocate a page of mem on each reach. Therefore
-    // this is the max parallel throughput we get
-    // without duplicating mmap calls.
-    final Long macPageSize = 16384L * 1280;
-
-    final Stream<ByteBuffer> fileChunks = FastFiles.readMMapChunks(Paths.get(FILE), macPageSize);
-    final Optional<Map<String, MeasurementAggregation>> aggregates = fileChunks
-        .parallel()
-        .map(CalculateAverage_gold::toMeasureStream)
-        .map(CalculateAverage_gold::streamToAggregate)
-        .collect(Collectors.reducing(CalculateAverage_gold::combineMaps));
-
-    // use TreeMap to provide sorting on aggregates by station name
-    final Map<String, MeasurementAggregation> aggregationsSorted = new TreeMap<>(aggregates.orElseThrow());
-    System.out.println(aggregationsSorted);
-  }
-
-  private static Stream<Measurement> toMeasureStream(final ByteBuffer buffer) {
-    return StreamSupport.stream(
-        Spliterators.spliteratorUnknownSize(new MeasurementIterator(buffer), Spliterator.IMMUTABLE),
-        false);
-  }
-
-  /**
-   * convert the Stream of Measurement objects to aggregates keyed by station
-   * name.
-   * 
-   * @param measures -- Measurements.
-   * @return Map<String, MeasurementAggregation>
-   */
-  private static Map<String, MeasurementAggregation> streamToAggregate(final Stream<Measurement> measures) {
-    // use a Map since insertion/contains is going to happen K times. Laster we need
-    // ordering which is NlgN
-    final Map<String, MeasurementAggregation> aggregates = new HashMap<>();
-
-    measures.forEach(measure -> {
-      if (aggregates.containsKey(measure.station)) {
-        MeasurementAggregation aggregation = aggregates.get(measure.station);
-        aggregation.appendValue(measure.value);
-        // don't need to insert since we are using the same object reference
-        return;
-      }
-      MeasurementAggregation aggregation = new MeasurementAggregation(measure.value);
-      aggregates.put(measure.station, aggregation);
-    });
-
-    return aggregates;
-  }
-
-  /**
-   * Combines Maps by combining aggregates with the same station name.
-   * 
-   * @param map1 -- aggregate map
-   * @param map2 -- mapp to append to map1
-   * @return
-   */
-  private static Map<String, MeasurementAggregation> combineMaps(Map<String, MeasurementAggregation> map1,
-      Map<String, MeasurementAggregation> map2) {
-    for (var entry : map2.entrySet()) {
-      map1.merge(entry.getKey(), entry.getValue(), MeasurementAggregation::combine);
+
+    /**
+     * Returns everything which changes the result of a run over the files, the
+     * key of the run in a ResultCache.
+     */
+    private static String cacheQuery(final List<Path> files, final Options options) {
+        final StringBuilder query = new StringBuilder();
+        for (Path file : files) {
+            query.append(file.toAbsolutePath().normalize()).append('\n');
+        }
+        query.append("range=").append(options.rangeStart).append(':').append(options.rangeEnd).append('\n');
+        query.append("stations=").append(options.stations == null ? "" : options.stations.key());
+        return query.toString();
     }
 
-    return map1;
-  }
-
-  /**
-   * Iterator which reads bytes from the buffer, parse the next Measurement, and
-   * returns that measurement.
-   */
-  private static class MeasurementIterator implements Iterator<Measurement> {
-    private final ByteBuffer buffer;
-    private int currentIdx;
-    private int maxSize;
-
-    public MeasurementIterator(final ByteBuffer buffer) {
-      this.buffer = buffer;
-      this.currentIdx = 0;
-      this.maxSize = buffer.limit();
+    /**
+     * Tables of one pass over the files, the offset the pass ended at in the
+     * last file, and the chunk tuning the pass ended with.
+     */
+    private record Pass(List<StationTable> tables, long end, ChunkTuning tuning) {
     }
 
-    @Override
-    public boolean hasNext() {
-      return this.currentIdx < this.maxSize;
+    /**
+     * Aggregates the files from offset on with the configured executor. All
+     * files are mapped up front and their chunks are processed by the same
+     * workers.
+     *
+     * @param files -- measurements files
+     * @param from -- line start to continue at, 0 for the whole file, only used
+     *            with a single file
+     * @param completeLinesOnly -- whether to leave a partially written last line out
+     * @param calibratedChunkSize -- chunk size to start at, 0 to derive it from the input
+     * @param options -- executor and concurrency
+     * @return the tables, and the end of the aggregated lines
+     */
+    // the Stats.Phase of a try-with-resources is only closed, never referenced
+    @SuppressWarnings("try")
+    private static Pass aggregate(final List<Path> files, final long from, final boolean completeLinesOnly, final long calibratedChunkSize,
+                                  final Options options) {
+        // map the files (or the part appended since from) once, workers read line aligned slices of them
+        try (Arena arena = Arena.ofShared()) {
+            final List<MemorySegment> lines = new ArrayList<>(files.size());
+            final List<MemorySegment> gzipped = new ArrayList<>();
+            long end = 0;
+            try (Stats.Phase phase = STATS.phase("map")) {
+                for (Path file : files) {
+                    final MemorySegment segment = FastFiles.mapFile(file, from, arena);
+                    if (BlockGzipReader.isGzip(segment)) {
+                        gzipped.add(segment);
+                        continue;
+                    }
+                    // a checkpoint leaves a partial last line out, otherwise only the lines starting in
+                    // the --range are aggregated (all of them by default)
+                    final MemorySegment fileLines = completeLinesOnly
+                            ? segment.asSlice(0, FastFiles.completeLinesEnd(segment))
+                            : FastFiles.lineRange(segment, options.rangeStart, options.rangeEnd);
+                    lines.add(fileLines);
+                    end = from + segment.segmentOffset(fileLines) + fileLines.byteSize();
+                }
+            }
+
+            long inputSize = 0;
+            for (MemorySegment segment : lines) {
+                inputSize += segment.byteSize();
+            }
+            for (MemorySegment segment : gzipped) {
+                inputSize += segment.byteSize();
+            }
+            final ChunkTuning tuning = ChunkTuning.forInput(inputSize, options.concurrency, calibratedChunkSize);
+
+            // with a dictionary of the sampled stations the tables find most stations through a perfect hash
+            final Supplier<StationTable> newTable;
+            if (options.dictionary && !lines.isEmpty()) {
+                try (Stats.Phase phase = STATS.phase("sample")) {
+                    final StationDictionary dictionary = StationDictionary.sample(FastFiles.sampleChunks(lines, DICTIONARY_SAMPLES, DICTIONARY_SAMPLE_SIZE));
+                    newTable = () -> new StationTable(dictionary, options.percentiles);
+                }
+            }
+            else {
+                newTable = () -> new StationTable(null, options.percentiles);
+            }
+
+            // lines of filtered out stations are skipped right after their ';'
+            final StationFilter filter = options.stations;
+            if (options.offHeap) {
+                try (Stats.Phase phase = STATS.phase("aggregate")) {
+                    final List<OffHeapStationTable> offHeapTables = new ArrayList<>(aggregateOffHeap(lines, tuning, filter));
+                    if (!gzipped.isEmpty()) {
+                        offHeapTables.addAll(new BlockGzipReader(gzipped, options.concurrency).run(OffHeapStationTable::new,
+                                (table, chunk) -> aggregateChunk(table, chunk, filter)));
+                    }
+                    return new Pass(toStationTables(offHeapTables), end, tuning);
+                }
+            }
+
+            try (Stats.Phase phase = STATS.phase("aggregate")) {
+                final List<StationTable> tables = new ArrayList<>(switch (options.executor) {
+                    case THREADS -> aggregateOnWorkers(lines, tuning, newTable, filter);
+                    case FORKJOIN -> aggregateOnForkJoin(lines, tuning.chunkSize(), newTable, filter);
+                    case VIRTUAL -> aggregateOnVirtualThreads(lines, tuning.chunkSize(), tuning.workers(), newTable, filter);
+                });
+                // compressed files are inflated after the plain ones, by one pool of their own shared by
+                // all of them, whatever the executor
+                if (!gzipped.isEmpty()) {
+                    tables.addAll(new BlockGzipReader(gzipped, options.concurrency).run(newTable, (table, chunk) -> aggregateChunk(table, chunk, filter)));
+                }
+                return new Pass(tables, end, tuning);
+            }
+        }
     }
 
-    @Override
-    public Measurement next() {
-      final byte[] bytes = new byte[48];
-      String key = null;
-      String value = null;
+    /**
+     * Follows the file as it grows. Every interval the complete lines appended
+     * since the last pass are folded into the running aggregates and a snapshot
+     * is printed. A file which shrank was truncated or rotated, it is read again
+     * from the start. Runs until the process is killed.
+     */
+    private static void follow(final Path file, final long calibratedChunkSize, final Options options) throws IOException {
+        final Optional<Checkpoint> checkpoint = options.checkpoint == null ? Optional.empty() : Checkpoint.load(options.checkpoint, file);
+        StationTable state = checkpoint.map(Checkpoint::table).orElseGet(StationTable::new);
+        long offset = checkpoint.map(Checkpoint::offset).orElse(0L);
+        final WritableByteChannel stdout = ResultWriter.stdout();
+
+        while (true) {
+            final long start = System.nanoTime();
+            if (Files.size(file) < offset) {
+                state = new StationTable();
+                offset = 0;
+            }
 
-      int currentLineIdx = 0;
-      int separatorIdx = 0;
-      while (currentLineIdx + this.currentIdx < this.maxSize) {
-        final char currentChar = (char) buffer.get(currentLineIdx + this.currentIdx);
-        bytes[currentLineIdx] = (byte) currentChar;
+            final Pass pass = aggregate(List.of(file), offset, true, calibratedChunkSize, options);
+            pass.tables().forEach(state::combine);
+            if (options.checkpoint != null && pass.end() != offset) {
+                new Checkpoint(pass.end(), state).save(options.checkpoint, file);
+            }
+            offset = pass.end();
+            PartitionedMerge.writeSorted(List.of(state), options.concurrency, stdout);
 
-        // find separator
-        if (currentChar == ';') {
-          key = new String(bytes, 0, currentLineIdx);
-          separatorIdx = currentLineIdx;
+            final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+            try {
+                Thread.sleep(Math.max(0, options.interval - elapsedMillis));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
         }
+    }
+
+    /**
+     * Workers claim line aligned slices of the file and aggregate all of their
+     * slices into a single table. The slice size adapts to the measured
+     * throughput of the workers.
+     */
+    private static List<StationTable> aggregateOnWorkers(final List<MemorySegment> files, final ChunkTuning tuning, final Supplier<StationTable> newTable,
+                                                         final StationFilter filter) {
+        return new ChunkScheduler(files, tuning).run(newTable, (table, chunk) -> aggregateChunk(table, chunk, filter));
+    }
 
-        currentLineIdx++;
-        if (currentChar == '\n') {
-          value = new String(bytes, separatorIdx + 1, currentLineIdx - separatorIdx);
-          break;
+    /**
+     * Like aggregateOnWorkers, but every worker reuses one off-heap table for
+     * all of its slices, so the scan doesn't allocate on the heap.
+     */
+    private static List<OffHeapStationTable> aggregateOffHeap(final List<MemorySegment> files, final ChunkTuning tuning, final StationFilter filter) {
+        return new ChunkScheduler(files, tuning).run(OffHeapStationTable::new, (table, chunk) -> aggregateChunk(table, chunk, filter));
+    }
+
+    /**
+     * Copies the off-heap tables to the heap once the scan is done, and frees
+     * them.
+     */
+    private static List<StationTable> toStationTables(final List<OffHeapStationTable> offHeapTables) {
+        final List<StationTable> tables = new ArrayList<>(offHeapTables.size());
+        for (OffHeapStationTable offHeapTable : offHeapTables) {
+            tables.add(offHeapTable.toStationTable());
+            offHeapTable.close();
         }
-      }
+        return tables;
+    }
+
+    /**
+     * Splits the sized chunk stream over the common ForkJoinPool, one table per
+     * chunk.
+     */
+    private static List<StationTable> aggregateOnForkJoin(final List<MemorySegment> files, final long chunkSize, final Supplier<StationTable> newTable,
+                                                          final StationFilter filter) {
+        return FastFiles.segmentChunks(files, chunkSize)
+                .parallel()
+                .map(chunk -> aggregateChunk(newTable.get(), chunk, filter))
+                .toList();
+    }
+
+    /**
+     * Processes every chunk on its own virtual thread, one table per chunk.
+     */
+    private static List<StationTable> aggregateOnVirtualThreads(final List<MemorySegment> files, final long chunkSize, final int concurrency,
+                                                                final Supplier<StationTable> newTable, final StationFilter filter) {
+        return new VirtualChunkExecutor(concurrency).run(FastFiles.segmentChunks(files, chunkSize), chunk -> aggregateChunk(newTable.get(), chunk, filter));
+    }
 
-      final Measurement measure = new Measurement(key, Double.parseDouble(value));
-      this.currentIdx += currentLineIdx;
+    /**
+     * Aggregates the measurements of a file chunk into a table keyed by the
+     * station name bytes.
+     *
+     * @param aggregates -- table of the worker processing the chunk
+     * @param chunk -- line aligned file chunk
+     * @param filter -- stations to aggregate, null for all
+     * @return the table
+     */
+    private static StationTable aggregateChunk(final StationTable aggregates, final MemorySegment chunk, final StationFilter filter) {
+        aggregateChunk(chunk, segment -> aggregates.addAll(segment, filter));
+        return aggregates;
+    }
 
-      return measure;
+    private static void aggregateChunk(final OffHeapStationTable aggregates, final MemorySegment chunk, final StationFilter filter) {
+        aggregateChunk(chunk, segment -> aggregates.addAll(segment, filter));
     }
 
-  }
+    /**
+     * Adds the lines of a chunk to a table and records the chunk.
+     *
+     * While a flight recording is running a mapped chunk is loaded before it is
+     * parsed, so the ChunkEvent can tell the page faults apart from the parsing.
+     *
+     * @param chunk -- line aligned file chunk
+     * @param addAll -- adds the lines of the chunk to the table, returns the number of lines
+     */
+    private static void aggregateChunk(final MemorySegment chunk, final ToIntFunction<MemorySegment> addAll) {
+        final ChunkEvent event = new ChunkEvent();
+        if (!event.isEnabled()) {
+            STATS.chunk(chunk.byteSize(), addAll.applyAsInt(chunk));
+            return;
+        }
+
+        event.begin();
+        final long start = System.nanoTime();
+        if (chunk.isMapped()) {
+            chunk.load();
+        }
+        final long loaded = System.nanoTime();
+        final int lines = addAll.applyAsInt(chunk);
+        event.mapTime = loaded - start;
+        event.parseTime = System.nanoTime() - loaded;
+        event.bytes = chunk.byteSize();
+        event.lines = lines;
+        event.worker = Thread.currentThread().getName();
+        event.commit();
+        STATS.chunk(chunk.byteSize(), lines);
+    }
 }
 
 // Attempt #1: Just parrallelize with HashMap and TreeMap
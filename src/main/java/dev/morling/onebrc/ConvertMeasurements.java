@@ -0,0 +1,46 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+
+import dev.morling.onebrc.columnar.ColumnarWriter;
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * Converts measurements.txt into the binary columnar format read by
+ * CalculateAverage_columnar.
+ */
+public class ConvertMeasurements {
+
+    public static void main(String[] args) {
+        final long start = System.currentTimeMillis();
+        if (args.length > 2) {
+            System.out.println("Usage: convert_measurements.sh [<text file> [<columnar file>]]");
+            System.exit(1);
+        }
+        final Path in = Path.of(args.length > 0 ? args[0] : "./measurements.txt");
+        final Path out = Path.of(args.length > 1 ? args[1] : "./measurements.bin");
+
+        try (Arena arena = Arena.ofShared()) {
+            final MemorySegment text = FastFiles.mapFile(in, arena);
+            final int stations = ColumnarWriter.convert(text, out, Runtime.getRuntime().availableProcessors());
+            System.out.printf("Converted %s with %,d stations to %s in %s ms%n", in, stations, out, System.currentTimeMillis() - start);
+        }
+    }
+}
@@ -15,38 +15,112 @@
  */
 package dev.morling.onebrc;
 
-import java.io.BufferedWriter;
-import java.nio.file.Files;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
+/**
+ * Generates measurements.txt, or a block gzip measurements.txt.gz.
+ *
+ * Rows are generated in blocks of BLOCK_ROWS. The content of a block only
+ * depends on the seed and the block index, so worker threads can format blocks
+ * in any order and write them with positional writes, and a given seed always
+ * produces the same file regardless of the number of threads.
+ */
 public class CreateMeasurements {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final Path GZIP_MEASUREMENT_FILE = Path.of("./measurements.txt.gz");
+    private static final String USAGE = """
+            Usage: create_measurements.sh <number of records to create> [options]
+              --seed=<n>              seed, the same seed creates the same file (default: random)
+              --stations=<n>          number of distinct stations, synthetic stations are added
+                                      beyond the built-in list (default: the built-in list)
+              --name-length=<a>:<b>   use synthetic station names only, with a uniform length
+                                      of a to b bytes (1 <= a <= b <= 100)
+              --threads=<n>           number of writer threads (default: cores)
+              --gzip                  write measurements.txt.gz in block gzip (BGZF) format
+            """;
+    private static final int BLOCK_ROWS = 256 * 1024;
+    private static final int MAX_NAME_LENGTH = 100;
+    private static final int PROGRESS_ROWS = 50_000_000;
+    // input of a BGZF member, small enough for the compressed member to stay below 64KB
+    private static final int BGZF_INPUT_SIZE = 0xff00;
+    private static final int BGZF_HEADER_SIZE = 18;
+    // empty member which marks the end of a BGZF file
+    private static final byte[] BGZF_EOF = { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, 0x1b, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
 
     private record WeatherStation(String id, double meanTemperature) {
-        double measurement() {
-            double m = ThreadLocalRandom.current().nextGaussian(meanTemperature, 10);
-            return Math.round(m * 10.0) / 10.0;
+        /**
+         * Returns a measurement in tenths of a degree, within [-99.9, 99.9].
+         */
+        int measurement(final SplittableRandom random) {
+            final double m = random.nextGaussian(meanTemperature, 10);
+            return (int) Math.max(-999, Math.min(999, Math.round(m * 10.0)));
         }
     }
 
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.print(USAGE);
             System.exit(1);
         }
 
-        int size = 0;
+        long size = 0;
+        long seed = ThreadLocalRandom.current().nextLong();
+        int cardinality = 0;
+        int minNameLength = 0;
+        int maxNameLength = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean gzip = false;
         try {
-            size = Integer.parseInt(args[0]);
+            size = Long.parseLong(args[0]);
+            if (size < 0) {
+                throw new IllegalArgumentException("Invalid value for <number of records to create>");
+            }
+            for (int i = 1; i < args.length; i++) {
+                final int separator = args[i].indexOf('=');
+                final String name = separator < 0 ? args[i] : args[i].substring(0, separator);
+                final String value = separator < 0 ? "" : args[i].substring(separator + 1);
+                switch (name) {
+                    case "--seed" -> seed = Long.parseLong(value);
+                    case "--stations" -> cardinality = positive(name, value);
+                    case "--name-length" -> {
+                        final int colon = value.indexOf(':');
+                        minNameLength = positive(name, colon < 0 ? value : value.substring(0, colon));
+                        maxNameLength = positive(name, colon < 0 ? value : value.substring(colon + 1));
+                        if (minNameLength > maxNameLength || maxNameLength > MAX_NAME_LENGTH) {
+                            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+                        }
+                    }
+                    case "--threads" -> threads = positive(name, value);
+                    case "--gzip" -> gzip = true;
+                    default -> throw new IllegalArgumentException("Unknown option: " + args[i]);
+                }
+            }
         }
-        catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+        catch (IllegalArgumentException e) {
+            // NumberFormatException is an IllegalArgumentException as well
+            System.out.println(e instanceof NumberFormatException ? "Invalid number: " + e.getMessage() : e.getMessage());
+            System.out.print(USAGE);
             System.exit(1);
         }
 
@@ -488,18 +562,234 @@ public class CreateMeasurements {
                 new WeatherStation("Zagreb", 10.7),
                 new WeatherStation("Zanzibar City", 26.0),
                 new WeatherStation("Zürich", 9.3));
+        final List<WeatherStation> selected = selectStations(stations, cardinality, minNameLength, maxNameLength, seed);
+        System.out.printf("Using seed %d and %,d stations%n", seed, selected.size());
+        write(selected, size, seed, threads, gzip, start);
+        System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+    }
+
+    private static int positive(final String name, final String value) {
+        final int number = Integer.parseInt(value);
+        if (number <= 0) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+        return number;
+    }
+
+    /**
+     * Returns the stations to generate measurements for. Without options this is
+     * the built-in list. With a cardinality the built-in list is cut, or extended
+     * with synthetic stations. With a name length all stations are synthetic.
+     */
+    private static List<WeatherStation> selectStations(final List<WeatherStation> builtIn, final int cardinality, final int minNameLength,
+                                                       final int maxNameLength, final long seed) {
+        final boolean synthetic = maxNameLength > 0;
+        final int count = cardinality > 0 ? cardinality : builtIn.size();
+        if (!synthetic && count <= builtIn.size()) {
+            return builtIn.subList(0, count);
+        }
+
+        final List<WeatherStation> result = new ArrayList<>(count);
+        final Set<String> names = new HashSet<>(count * 2);
+        if (!synthetic) {
+            for (WeatherStation station : builtIn) {
+                result.add(station);
+                names.add(station.id());
+            }
+        }
+
+        final SplittableRandom random = new SplittableRandom(seed);
+        final int minLength = synthetic ? minNameLength : 4;
+        final int maxLength = synthetic ? maxNameLength : 24;
+        while (result.size() < count) {
+            final String name = syntheticName(random, minLength + random.nextInt(maxLength - minLength + 1));
+            if (names.add(name)) {
+                // one decimal, like the built-in means
+                result.add(new WeatherStation(name, Math.round(random.nextDouble(-30.0, 40.0) * 10.0) / 10.0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns a capitalized ASCII name of the given length in bytes, with an
+     * occasional space in between words. Names never start or end with a space.
+     */
+    private static String syntheticName(final SplittableRandom random, final int length) {
+        final char[] name = new char[length];
+        for (int i = 0; i < length; i++) {
+            if (i == 0 || name[i - 1] == ' ') {
+                name[i] = (char) ('A' + random.nextInt(26));
+            }
+            else if (i < length - 1 && i > 2 && random.nextInt(8) == 0) {
+                name[i] = ' ';
+            }
+            else {
+                name[i] = (char) ('a' + random.nextInt(26));
+            }
+        }
+        return new String(name);
+    }
+
+    /**
+     * Writes all blocks of the file from the given number of threads. Threads
+     * claim blocks in order, so the end offset of the previous block is known
+     * (or about to be known) by the time a block is formatted. With gzip every
+     * block is compressed into BGZF members before it is written.
+     */
+    private static void write(final List<WeatherStation> stations, final long size, final long seed, final int threads, final boolean gzip,
+                              final long start)
+            throws IOException {
+        final byte[][] names = new byte[stations.size()][];
+        int maxName = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = stations.get(i).id().getBytes(StandardCharsets.UTF_8);
+            maxName = Math.max(maxName, names[i].length);
+        }
+        // name, ';', "-99.9" and '\n'
+        final int maxRowLength = maxName + 7;
+
+        final int blocks = (int) ((size + BLOCK_ROWS - 1) / BLOCK_ROWS);
+        final List<CompletableFuture<Long>> ends = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            ends.add(new CompletableFuture<>());
+        }
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final AtomicLong written = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        try (FileChannel channel = FileChannel.open(gzip ? GZIP_MEASUREMENT_FILE : MEASUREMENT_FILE, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            final List<Thread> workers = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                workers.add(Thread.ofPlatform().name("measurement-writer-" + i).start(() -> {
+                    final ByteBuffer buffer = ByteBuffer.allocate(BLOCK_ROWS * maxRowLength);
+                    // compressed members never exceed their input by more than a few bytes
+                    final ByteBuffer compressed = ByteBuffer.allocate(gzip ? buffer.capacity() + (buffer.capacity() / BGZF_INPUT_SIZE + 1) * 128 : 0);
+                    final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+                    final CRC32 crc = new CRC32();
+                    int block = 0;
+                    try {
+                        while ((block = nextBlock.getAndIncrement()) < blocks) {
+                            final long firstRow = (long) block * BLOCK_ROWS;
+                            final int rows = (int) Math.min(BLOCK_ROWS, size - firstRow);
+                            formatBlock(buffer, stations, names, rows, blockRandom(seed, block));
+                            final ByteBuffer output = gzip ? compressBlock(buffer, compressed, deflater, crc) : buffer;
 
-        try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE)) {
-            for (int i = 0; i < size; i++) {
-                if (i > 0 && i % 50_000_000 == 0) {
-                    System.out.printf("Wrote %,d measurements in %s ms%n", i, System.currentTimeMillis() - start);
+                            final long offset = block == 0 ? 0 : ends.get(block - 1).join();
+                            ends.get(block).complete(offset + output.remaining());
+                            writeFully(channel, output, offset);
+
+                            final long done = written.addAndGet(rows);
+                            if (done / PROGRESS_ROWS != (done - rows) / PROGRESS_ROWS) {
+                                System.out.printf("Wrote %,d measurements in %s ms%n", done, System.currentTimeMillis() - start);
+                            }
+                        }
+                    }
+                    catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                        // fail the blocks waiting for this one instead of blocking them forever
+                        if (block < blocks) {
+                            ends.get(block).completeExceptionally(t);
+                        }
+                    }
+                    finally {
+                        deflater.end();
+                    }
+                }));
+            }
+
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for writers", e);
                 }
-                WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
-                bw.write(station.id());
-                bw.write(";" + station.measurement());
-                bw.write('\n');
+            }
+
+            if (gzip && failure.get() == null) {
+                writeFully(channel, ByteBuffer.wrap(BGZF_EOF), blocks == 0 ? 0 : ends.get(blocks - 1).join());
             }
         }
-        System.out.printf("Created file with %,d measurements in %s ms%n", size, System.currentTimeMillis() - start);
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Writer failed", failure.get());
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, final long offset) throws IOException {
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Compresses a formatted block into BGZF members: gzip members with the
+     * member size in a "BC" extra field, so readers can find every member
+     * without inflating the ones before it.
+     *
+     * @return the compressed buffer, flipped for writing
+     */
+    private static ByteBuffer compressBlock(final ByteBuffer text, final ByteBuffer compressed, final Deflater deflater, final CRC32 crc) {
+        compressed.clear().order(ByteOrder.LITTLE_ENDIAN);
+        while (text.hasRemaining()) {
+            final int length = Math.min(BGZF_INPUT_SIZE, text.remaining());
+            final ByteBuffer input = text.slice(text.position(), length);
+            final int memberStart = compressed.position();
+
+            // the header of the EOF member is the header of every member, only BSIZE differs
+            compressed.put(BGZF_EOF, 0, BGZF_HEADER_SIZE);
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(compressed);
+            }
+            crc.reset();
+            crc.update(input.rewind());
+            compressed.putInt((int) crc.getValue()).putInt(length);
+            compressed.putShort(memberStart + BGZF_HEADER_SIZE - Short.BYTES, (short) (compressed.position() - memberStart - 1));
+
+            text.position(text.position() + length);
+        }
+        return compressed.flip();
+    }
+
+    /**
+     * Returns the random generator of a block, which only depends on the seed and
+     * the block index.
+     */
+    private static SplittableRandom blockRandom(final long seed, final int block) {
+        return new SplittableRandom(seed * 0x9E3779B97F4A7C15L + block);
+    }
+
+    /**
+     * Formats the rows of a block into the buffer, which is flipped for writing.
+     */
+    private static void formatBlock(final ByteBuffer buffer, final List<WeatherStation> stations, final byte[][] names, final int rows,
+                                    final SplittableRandom random) {
+        buffer.clear();
+        for (int i = 0; i < rows; i++) {
+            final int station = random.nextInt(names.length);
+            buffer.put(names[station]);
+            buffer.put((byte) ';');
+
+            int tenths = stations.get(station).measurement(random);
+            if (tenths < 0) {
+                buffer.put((byte) '-');
+                tenths = -tenths;
+            }
+            if (tenths >= 100) {
+                buffer.put((byte) ('0' + tenths / 100));
+            }
+            buffer.put((byte) ('0' + tenths / 10 % 10));
+            buffer.put((byte) '.');
+            buffer.put((byte) ('0' + tenths % 10));
+            buffer.put((byte) '\n');
+        }
+        buffer.flip();
     }
 }
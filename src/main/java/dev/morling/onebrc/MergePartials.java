@@ -0,0 +1,47 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.morling.onebrc.data.Partials;
+import dev.morling.onebrc.data.PartitionedMerge;
+import dev.morling.onebrc.data.ResultWriter;
+import dev.morling.onebrc.data.StationTable;
+
+/**
+ * Merges partial results written by CalculateAverage_gold --partial and
+ * prints the final result, e.g. of several processes or hosts which each
+ * aggregated a --range of the same file.
+ */
+public class MergePartials {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: merge_partials.sh <partial file>...");
+            System.exit(1);
+        }
+
+        final List<StationTable> tables = new ArrayList<>(args.length);
+        for (String partial : args) {
+            tables.add(Partials.read(Path.of(partial)));
+        }
+        PartitionedMerge.writeSorted(tables, Runtime.getRuntime().availableProcessors(), ResultWriter.stdout());
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import dev.morling.onebrc.data.StationFilter;
+
+/**
+ * Command line options of CalculateAverage_gold. Options are of the form
+ * --name=value, everything has a default so the program runs without any.
+ */
+class Options {
+    static final String USAGE = """
+            Usage: calculate_average.sh gold [options] [<file|directory|glob>...]
+              inputs default to ./measurements.txt, all of them are processed by one worker pool,
+              gzip inputs are inflated by a second pool once the plain inputs are done
+              --executor=threads|forkjoin|virtual  how chunks are processed (default threads)
+              --concurrency=<n>                    max chunks processed at the same time (default: cores,
+                                                   fewer for small inputs)
+              --checkpoint=<file>                  resume from and update a checkpoint, so only lines appended
+                                                   since the last run are read
+              --follow                             keep reading lines appended to the file and print a
+                                                   snapshot every interval, until killed
+              --interval=<ms>                      snapshot interval of --follow (default 1000)
+              --range=<start>:<end>                only aggregate the lines starting in this byte range
+              --partial=<file>                     write a partial result for merge_partials.sh instead
+                                                   of printing the result
+              --dictionary                         sample the input first and find the sampled stations
+                                                   through a perfect hash instead of probing
+              --off-heap                           aggregate into one off-heap table per worker, so the scan
+                                                   runs without heap allocations (threads executor only)
+              --calibration=<file>                 start at the chunk size calibrated for this host and store
+                                                   the chunk size this run ends with (not updated by --follow)
+              --percentiles                        also print the exact p50/p90/p99 of every station,
+                                                   station=min/mean/max/p50/p90/p99 (threads executor only)
+              --stations=<names|@file>             only aggregate these stations, a comma separated list or
+                                                   a file with one name per line
+              --exclude-stations=<names|@file>     aggregate all stations except these
+              --cache=<dir>                        reuse the result of an earlier run over the same, unchanged
+                                                   files and options, or store the result of this run
+              --cache-size=<bytes>                 max size of the --cache directory, the least recently used
+                                                   results are evicted (default 64MB)
+              --stats                              print phase times, GC pauses and allocations to stderr,
+                                                   run with -XX:StartFlightRecording for per chunk events
+            """;
+
+    enum Executor {
+        // platform worker threads claiming chunks from an atomic cursor
+        THREADS,
+        // parallel() stream over the sized chunk spliterator
+        FORKJOIN,
+        // one virtual thread per chunk
+        VIRTUAL
+    }
+
+    Executor executor = Executor.THREADS;
+    int concurrency = Runtime.getRuntime().availableProcessors();
+    Path checkpoint = null;
+    boolean follow = false;
+    int interval = 1000;
+    long rangeStart = 0;
+    long rangeEnd = Long.MAX_VALUE;
+    Path partial = null;
+    boolean stats = false;
+    boolean dictionary = false;
+    boolean offHeap = false;
+    Path calibration = null;
+    boolean percentiles = false;
+    StationFilter stations = null;
+    Path cache = null;
+    long cacheSize = 64 * 1024 * 1024L;
+    List<String> inputs = new ArrayList<>();
+
+    /**
+     * Parses the program arguments.
+     *
+     * @throws IllegalArgumentException for unknown options or invalid values
+     */
+    static Options parse(final String[] args) {
+        final Options options = new Options();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                options.inputs.add(arg);
+                continue;
+            }
+            final int separator = arg.indexOf('=');
+            final String name = separator < 0 ? arg : arg.substring(0, separator);
+            final String value = separator < 0 ? null : arg.substring(separator + 1);
+
+            switch (name) {
+                case "--executor" -> options.executor = choice(name, value, Executor.class);
+                case "--concurrency" -> options.concurrency = positive(name, value);
+                case "--checkpoint" -> options.checkpoint = Path.of(required(name, value));
+                case "--follow" -> options.follow = flag(name, value);
+                case "--interval" -> options.interval = positive(name, value);
+                case "--range" -> {
+                    final String range = required(name, value);
+                    final int colon = range.indexOf(':');
+                    if (colon < 0) {
+                        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+                    }
+                    options.rangeStart = offset(name, range.substring(0, colon));
+                    options.rangeEnd = offset(name, range.substring(colon + 1));
+                    if (options.rangeStart > options.rangeEnd) {
+                        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+                    }
+                }
+                case "--partial" -> options.partial = Path.of(required(name, value));
+                case "--stats" -> options.stats = flag(name, value);
+                case "--dictionary" -> options.dictionary = flag(name, value);
+                case "--off-heap" -> options.offHeap = flag(name, value);
+                case "--calibration" -> options.calibration = Path.of(required(name, value));
+                case "--percentiles" -> options.percentiles = flag(name, value);
+                case "--stations" -> options.stations = StationFilter.include(stationNames(name, value));
+                case "--exclude-stations" -> options.stations = StationFilter.exclude(stationNames(name, value));
+                case "--cache" -> options.cache = Path.of(required(name, value));
+                case "--cache-size" -> options.cacheSize = offset(name, required(name, value));
+                default -> throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        if (options.ranged() && (options.follow || options.checkpoint != null)) {
+            throw new IllegalArgumentException("--range can't be combined with --follow or --checkpoint");
+        }
+        if (options.partial != null && options.follow) {
+            throw new IllegalArgumentException("--partial can't be combined with --follow");
+        }
+        if (options.offHeap && (options.executor != Executor.THREADS || options.dictionary)) {
+            throw new IllegalArgumentException("--off-heap needs --executor=threads and can't be combined with --dictionary");
+        }
+        // forkjoin and virtual keep a table per chunk until the merge, with a histogram per station that runs out of heap
+        if (options.percentiles && (options.executor != Executor.THREADS || options.offHeap || options.checkpoint != null || options.partial != null)) {
+            throw new IllegalArgumentException("--percentiles needs --executor=threads and can't be combined with --off-heap, --checkpoint or --partial");
+        }
+        if (options.stations != null && options.checkpoint != null) {
+            throw new IllegalArgumentException("--stations and --exclude-stations can't be combined with --checkpoint");
+        }
+        if (options.cache != null && (options.follow || options.checkpoint != null || options.percentiles)) {
+            throw new IllegalArgumentException("--cache can't be combined with --follow, --checkpoint or --percentiles");
+        }
+        if (options.stats && options.follow) {
+            throw new IllegalArgumentException("--stats can't be combined with --follow");
+        }
+        return options;
+    }
+
+    private static String required(final String name, final String value) {
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Missing value for " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Whether only a --range of the input is processed.
+     */
+    boolean ranged() {
+        return this.rangeStart != 0 || this.rangeEnd != Long.MAX_VALUE;
+    }
+
+    /**
+     * Whether an option is set which only works on a single input file.
+     */
+    boolean singleFileOnly() {
+        return this.follow || this.checkpoint != null || this.ranged();
+    }
+
+    /**
+     * Returns the station names of a comma separated list, or of a file with one
+     * name per line when the value starts with '@'.
+     */
+    private static List<String> stationNames(final String name, final String value) {
+        final String names = required(name, value);
+        if (!names.startsWith("@")) {
+            return List.of(names.split(","));
+        }
+        try {
+            return Files.readAllLines(Path.of(names.substring(1))).stream().filter(line -> !line.isEmpty()).toList();
+        }
+        catch (IOException e) {
+            throw new IllegalArgumentException("Can't read " + name + " file: " + e.getMessage());
+        }
+    }
+
+    private static boolean flag(final String name, final String value) {
+        if (value != null) {
+            throw new IllegalArgumentException(name + " doesn't take a value");
+        }
+        return true;
+    }
+
+    private static <E extends Enum<E>> E choice(final String name, final String value, final Class<E> type) {
+        required(name, value);
+        try {
+            return Enum.valueOf(type, value.toUpperCase());
+        }
+        catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+    }
+
+    private static long offset(final String name, final String value) {
+        try {
+            final long offset = Long.parseLong(value);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+        catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+    }
+
+    private static int positive(final String name, final String value) {
+        final int number;
+        try {
+            number = Integer.parseInt(required(name, value));
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+        if (number <= 0) {
+            throw new IllegalArgumentException("Invalid value for " + name + ": " + value);
+        }
+        return number;
+    }
+}
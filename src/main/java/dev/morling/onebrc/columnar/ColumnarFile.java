@@ -0,0 +1,201 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.columnar;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dev.morling.onebrc.data.AggregationStore;
+import dev.morling.onebrc.data.ResultWriter;
+
+/**
+ * Reader of the binary columnar measurements format written by
+ * ColumnarWriter. All numbers are little endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * int    number of stations
+ * per station, sorted by bytes: u16 length, UTF-8 name bytes
+ * per block:                    int rows, u16[rows] station ids, i16[rows] tenths
+ * </pre>
+ *
+ * Station ids index the dictionary, and the dictionary is sorted like the
+ * output of CalculateAverage_gold, so aggregating needs no hashing or name
+ * comparisons at all and the result is already in output order.
+ */
+public class ColumnarFile {
+    static final int MAGIC = 0x4C4F4342; // "BCOL"
+    static final int VERSION = 1;
+    static final int MAX_STATIONS = 1 << 16;
+    static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final byte[][] stations;
+    private final long[] blockOffsets;
+
+    private ColumnarFile(final MemorySegment segment, final byte[][] stations, final long[] blockOffsets) {
+        this.segment = segment;
+        this.stations = stations;
+        this.blockOffsets = blockOffsets;
+    }
+
+    /**
+     * Reads the dictionary and locates the blocks of a mapped columnar file.
+     *
+     * @param segment -- mapped file, see FastFiles.mapFile
+     * @return the file
+     * @throws IllegalArgumentException when the segment is not a columnar file
+     */
+    public static ColumnarFile open(final MemorySegment segment) {
+        if (segment.byteSize() < 3 * Integer.BYTES || segment.get(INT, 0) != MAGIC) {
+            throw new IllegalArgumentException("Not a columnar measurements file");
+        }
+        if (segment.get(INT, 4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported columnar version " + segment.get(INT, 4));
+        }
+
+        final byte[][] stations = new byte[segment.get(INT, 8)][];
+        long offset = 3 * Integer.BYTES;
+        for (int id = 0; id < stations.length; id++) {
+            final int length = Short.toUnsignedInt(segment.get(SHORT, offset));
+            offset += Short.BYTES;
+            stations[id] = segment.asSlice(offset, length).toArray(ValueLayout.JAVA_BYTE);
+            offset += length;
+        }
+
+        // blocks only have a row count header, walking them is one read per block
+        final List<Long> blocks = new ArrayList<>();
+        while (offset < segment.byteSize()) {
+            final int rows = segment.get(INT, offset);
+            if (rows < 0) {
+                throw new IllegalArgumentException("Corrupt columnar block at offset " + offset);
+            }
+            blocks.add(offset);
+            offset += Integer.BYTES + 4L * rows;
+        }
+        if (offset != segment.byteSize()) {
+            throw new IllegalArgumentException("Truncated columnar measurements file");
+        }
+        return new ColumnarFile(segment, stations, blocks.stream().mapToLong(Long::longValue).toArray());
+    }
+
+    public int stations() {
+        return this.stations.length;
+    }
+
+    public String station(final int id) {
+        return new String(this.stations[id], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the result of the aggregates of all stations, the dictionary is
+     * already in output order.
+     *
+     * @param aggregates -- aggregates indexed by station id, see aggregate
+     * @param out -- channel to write the result to
+     */
+    public void writeResult(final AggregationStore aggregates, final WritableByteChannel out) throws IOException {
+        long nameBytes = 0;
+        for (byte[] station : this.stations) {
+            nameBytes += station.length;
+        }
+        final ResultWriter writer = new ResultWriter(this.stations.length, nameBytes);
+        for (int id = 0; id < this.stations.length; id++) {
+            writer.add(this.stations[id], 0, this.stations[id].length, aggregates, id);
+        }
+        writer.writeTo(out);
+    }
+
+    public int blocks() {
+        return this.blockOffsets.length;
+    }
+
+    /**
+     * Adds every row of a block to the store, which is indexed by station id.
+     *
+     * @param block -- block index
+     * @param store -- store with capacity for stations() ids
+     */
+    public void aggregateBlock(final int block, final AggregationStore store) {
+        final long offset = this.blockOffsets[block];
+        final int rows = this.segment.get(INT, offset);
+        final long ids = offset + Integer.BYTES;
+        final long tenths = ids + 2L * rows;
+        for (long i = 0; i < 2L * rows; i += Short.BYTES) {
+            store.add(Short.toUnsignedInt(this.segment.get(SHORT, ids + i)), this.segment.get(SHORT, tenths + i));
+        }
+    }
+
+    /**
+     * Aggregates all blocks on worker threads which claim blocks from a shared
+     * counter.
+     *
+     * @param workers -- number of worker threads
+     * @return aggregates indexed by station id
+     */
+    public AggregationStore aggregate(final int workers) {
+        final AtomicInteger nextBlock = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<AggregationStore> stores = new ArrayList<>(workers);
+        final List<Thread> threads = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            final AggregationStore store = new AggregationStore(this.stations.length);
+            stores.add(store);
+            threads.add(Thread.ofPlatform().name("block-worker-" + i).start(() -> {
+                try {
+                    int block;
+                    while ((block = nextBlock.getAndIncrement()) < this.blockOffsets.length) {
+                        this.aggregateBlock(block, store);
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for block workers", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Block worker failed", failure.get());
+        }
+
+        final AggregationStore result = stores.get(0);
+        for (AggregationStore store : stores.subList(1, stores.size())) {
+            for (int id = 0; id < this.stations.length; id++) {
+                result.combine(id, store, id);
+            }
+        }
+        return result;
+    }
+}
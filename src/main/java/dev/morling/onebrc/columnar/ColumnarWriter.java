@@ -0,0 +1,213 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.columnar;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import dev.morling.onebrc.data.MeasurementIterator;
+import dev.morling.onebrc.data.StationTable;
+import dev.morling.onebrc.files.ChunkScheduler;
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * Converts a measurements text file into the columnar format, see ColumnarFile.
+ *
+ * The text is read twice. The first pass collects the station names on worker
+ * threads, so the sorted dictionary can be written before the blocks. The
+ * second pass encodes every line aligned text chunk into one block. Workers
+ * claim chunks in order and write their blocks with positional writes, the
+ * offset of a block is the end of the previous one.
+ */
+public class ColumnarWriter {
+    private static final long TEXT_CHUNK_SIZE = 4 * 1024 * 1024L;
+
+    private ColumnarWriter() {
+    }
+
+    /**
+     * Converts the text file.
+     *
+     * @param text -- mapped measurements text file
+     * @param out -- columnar file to write
+     * @param workers -- number of worker threads
+     * @return number of stations
+     */
+    public static int convert(final MemorySegment text, final Path out, final int workers) {
+        final StationTable dictionary = dictionary(text, workers);
+        final List<MemorySegment> chunks = FastFiles.segmentChunks(text, TEXT_CHUNK_SIZE).toList();
+
+        try (FileChannel channel = FileChannel.open(out, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final ByteBuffer header = header(dictionary);
+            final long blocksStart = header.remaining();
+            writeFully(channel, header, 0);
+            writeBlocks(channel, blocksStart, chunks, dictionary, workers);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return dictionary.size();
+    }
+
+    /**
+     * Returns a table of all stations whose ids are their index in name order.
+     */
+    private static StationTable dictionary(final MemorySegment text, final int workers) {
+        final List<StationTable> tables = new ChunkScheduler(text, TEXT_CHUNK_SIZE, workers).run(StationTable::new, StationTable::addAll);
+        final StationTable all = new StationTable();
+        tables.forEach(all::combine);
+
+        if (all.size() > ColumnarFile.MAX_STATIONS) {
+            throw new IllegalStateException("Too many stations for the columnar format: " + all.size());
+        }
+
+        // the same order as the output of PartitionedMerge, the aggregates copied along are not used
+        final StationTable dictionary = new StationTable();
+        for (int id : all.sortedIds()) {
+            dictionary.combine(all, id);
+        }
+        return dictionary;
+    }
+
+    private static ByteBuffer header(final StationTable dictionary) {
+        final byte[][] names = new byte[dictionary.size()][];
+        int size = 3 * Integer.BYTES;
+        for (int id = 0; id < names.length; id++) {
+            names[id] = dictionary.name(id).getBytes(StandardCharsets.UTF_8);
+            size += Short.BYTES + names[id].length;
+        }
+
+        final ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(ColumnarFile.MAGIC).putInt(ColumnarFile.VERSION).putInt(names.length);
+        for (byte[] name : names) {
+            header.putShort((short) name.length).put(name);
+        }
+        return header.flip();
+    }
+
+    private static void writeBlocks(final FileChannel channel, final long blocksStart, final List<MemorySegment> chunks, final StationTable dictionary,
+                                    final int workers) {
+        final List<CompletableFuture<Long>> ends = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            ends.add(new CompletableFuture<>());
+        }
+        final AtomicInteger nextChunk = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        final List<Thread> threads = new ArrayList<>(workers);
+        for (int i = 0; i < workers; i++) {
+            threads.add(Thread.ofPlatform().name("block-writer-" + i).start(() -> {
+                final BlockEncoder encoder = new BlockEncoder(dictionary);
+                int chunk = 0;
+                try {
+                    while ((chunk = nextChunk.getAndIncrement()) < chunks.size()) {
+                        final ByteBuffer block = encoder.encode(chunks.get(chunk));
+                        final long offset = chunk == 0 ? blocksStart : ends.get(chunk - 1).join();
+                        ends.get(chunk).complete(offset + block.remaining());
+                        writeFully(channel, block, offset);
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                    // fail the chunks waiting for this one instead of blocking them forever
+                    if (chunk < chunks.size()) {
+                        ends.get(chunk).completeExceptionally(t);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for block writers", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Block writer failed", failure.get());
+        }
+    }
+
+    private static void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Encodes text chunks into blocks, reusing its buffers for all chunks of a
+     * worker.
+     */
+    private static class BlockEncoder {
+        private final StationTable dictionary;
+        private short[] ids;
+        private short[] tenths;
+        private ByteBuffer block;
+
+        private BlockEncoder(final StationTable dictionary) {
+            this.dictionary = dictionary;
+            this.ids = new short[0];
+            this.tenths = new short[0];
+            this.block = ByteBuffer.allocate(0);
+        }
+
+        private ByteBuffer encode(final MemorySegment chunk) {
+            // the shortest possible line is "a;0\n"
+            final int maxRows = (int) (chunk.byteSize() / 4 + 1);
+            if (this.ids.length < maxRows) {
+                this.ids = new short[maxRows];
+                this.tenths = new short[maxRows];
+                this.block = ByteBuffer.allocate(Integer.BYTES + 4 * maxRows).order(ByteOrder.LITTLE_ENDIAN);
+            }
+
+            int rows = 0;
+            final MeasurementIterator measurements = new MeasurementIterator(chunk);
+            while (measurements.hasNext()) {
+                measurements.next();
+                // find never inserts, so the dictionary is safe to share between workers
+                final int id = this.dictionary.find(chunk, measurements.stationOffset(), measurements.stationLength(), measurements.stationHash());
+                if (id < 0) {
+                    // the file changed since the dictionary pass, the block would hold an id of another station
+                    final byte[] name = chunk.asSlice(measurements.stationOffset(), measurements.stationLength()).toArray(ValueLayout.JAVA_BYTE);
+                    throw new IllegalStateException("Station not in the dictionary: " + new String(name, StandardCharsets.UTF_8));
+                }
+                this.ids[rows] = (short) id;
+                this.tenths[rows] = (short) measurements.tenths();
+                rows++;
+            }
+
+            this.block.clear().putInt(rows);
+            this.block.asShortBuffer().put(this.ids, 0, rows).put(this.tenths, 0, rows);
+            return this.block.limit(Integer.BYTES + 4 * rows).position(0);
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Struct of arrays storage for the min/max/sum/count of many stations, indexed
+ * by station id.
+ *
+ * Values are integer tenths, so min and max fit in a short and the sum is
+ * exact. Use toAggregation to convert a station back to a MeasurementAggregation.
+ */
+public final class AggregationStore {
+    private short[] min;
+    private short[] max;
+    private long[] sum;
+    private long[] count;
+
+    public AggregationStore(final int capacity) {
+        this.min = new short[0];
+        this.max = new short[0];
+        this.sum = new long[0];
+        this.count = new long[0];
+        this.ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the arrays so ids up to capacity - 1 can be used.
+     *
+     * @param capacity -- number of stations to hold
+     */
+    public void ensureCapacity(final int capacity) {
+        final int oldCapacity = this.min.length;
+        if (capacity <= oldCapacity) {
+            return;
+        }
+        this.min = Arrays.copyOf(this.min, capacity);
+        this.max = Arrays.copyOf(this.max, capacity);
+        this.sum = Arrays.copyOf(this.sum, capacity);
+        this.count = Arrays.copyOf(this.count, capacity);
+
+        // empty slots start at the identity of min/max so add doesn't need to branch
+        Arrays.fill(this.min, oldCapacity, capacity, Short.MAX_VALUE);
+        Arrays.fill(this.max, oldCapacity, capacity, Short.MIN_VALUE);
+    }
+
+    /**
+     * Adds a value to the aggregation of a station.
+     *
+     * @param id -- station id
+     * @param tenths -- a measurement in tenths
+     */
+    public void add(final int id, final int tenths) {
+        this.min[id] = (short) Math.min(this.min[id], tenths);
+        this.max[id] = (short) Math.max(this.max[id], tenths);
+        this.sum[id] += tenths;
+        this.count[id]++;
+    }
+
+    /**
+     * Combines the aggregation of a station in another store into a station of
+     * this one.
+     *
+     * @param id -- station id in this store
+     * @param other -- store to read from
+     * @param otherId -- station id in the other store
+     */
+    public void combine(final int id, final AggregationStore other, final int otherId) {
+        this.min[id] = (short) Math.min(this.min[id], other.min[otherId]);
+        this.max[id] = (short) Math.max(this.max[id], other.max[otherId]);
+        this.sum[id] += other.sum[otherId];
+        this.count[id] += other.count[otherId];
+    }
+
+    /**
+     * Combines an exact aggregation into a station of this store.
+     *
+     * @param id -- station id in this store
+     * @param min -- min in tenths
+     * @param max -- max in tenths
+     * @param sum -- sum in tenths
+     * @param count -- number of measurements
+     */
+    public void combine(final int id, final short min, final short max, final long sum, final long count) {
+        this.min[id] = (short) Math.min(this.min[id], min);
+        this.max[id] = (short) Math.max(this.max[id], max);
+        this.sum[id] += sum;
+        this.count[id] += count;
+    }
+
+    /**
+     * Writes the exact aggregation of a station.
+     *
+     * @param id -- station id
+     * @param out -- output to write to
+     */
+    public void writeTo(final int id, final DataOutput out) throws IOException {
+        out.writeShort(this.min[id]);
+        out.writeShort(this.max[id]);
+        out.writeLong(this.sum[id]);
+        out.writeLong(this.count[id]);
+    }
+
+    /**
+     * Reads an aggregation written by writeTo and combines it into a station.
+     *
+     * @param id -- station id in this store
+     * @param in -- input to read from
+     */
+    public void readFrom(final int id, final DataInput in) throws IOException {
+        this.min[id] = (short) Math.min(this.min[id], in.readShort());
+        this.max[id] = (short) Math.max(this.max[id], in.readShort());
+        this.sum[id] += in.readLong();
+        this.count[id] += in.readLong();
+    }
+
+    /**
+     * Formats the aggregation of a station as min/mean/max with one decimal.
+     * The mean is rounded half up from the exact integer sum, no double is
+     * involved.
+     *
+     * @param id -- station id
+     * @param out -- buffer to append to
+     */
+    public void format(final int id, final ByteBuffer out) {
+        formatTenths(out, this.min[id]);
+        out.put((byte) '/');
+        formatTenths(out, Math.floorDiv(2 * this.sum[id] + this.count[id], 2 * this.count[id]));
+        out.put((byte) '/');
+        formatTenths(out, this.max[id]);
+    }
+
+    static void formatTenths(final ByteBuffer out, final long tenths) {
+        long abs = tenths;
+        if (tenths < 0) {
+            out.put((byte) '-');
+            abs = -tenths;
+        }
+        formatInteger(out, abs / 10);
+        out.put((byte) '.');
+        out.put((byte) ('0' + abs % 10));
+    }
+
+    private static void formatInteger(final ByteBuffer out, final long value) {
+        if (value >= 10) {
+            formatInteger(out, value / 10);
+        }
+        out.put((byte) ('0' + value % 10));
+    }
+
+    /**
+     * Converts a station back to a MeasurementAggregation in degrees.
+     *
+     * @param id -- station id
+     * @return MeasurementAggregation
+     */
+    public MeasurementAggregation toAggregation(final int id) {
+        return new MeasurementAggregation(this.min[id] / 10.0, this.max[id] / 10.0, this.sum[id] / 10.0, this.count[id]);
+    }
+
+    /**
+     * Returns the number of measurements of a station, 0 for a station which
+     * was reserved but never seen.
+     */
+    public long count(final int id) {
+        return this.count[id];
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.zip.CRC32C;
+
+/**
+ * Aggregates of a line aligned prefix of the measurements file, persisted so a
+ * later run only has to process the lines appended since.
+ *
+ * The prefix is identified by its length and a fingerprint of its first and
+ * last bytes. That catches a truncated, rotated or rewritten file without
+ * reading the whole prefix again, a checkpoint which doesn't match is ignored
+ * and the file is scanned from the start.
+ */
+public class Checkpoint {
+    private static final int MAGIC = 0x31425243; // "1BRC"
+    private static final int VERSION = 1;
+    private static final int FINGERPRINT_WINDOW = 64 * 1024;
+
+    private final long offset;
+    private final StationTable table;
+
+    /**
+     * @param offset -- end of the processed prefix, a line start
+     * @param table -- aggregates of all lines in the prefix
+     */
+    public Checkpoint(final long offset, final StationTable table) {
+        this.offset = offset;
+        this.table = table;
+    }
+
+    public long offset() {
+        return this.offset;
+    }
+
+    public StationTable table() {
+        return this.table;
+    }
+
+    /**
+     * Loads the checkpoint of a file.
+     *
+     * @param checkpointFile -- file written by save
+     * @param measurementsFile -- file the checkpoint was taken of
+     * @return the checkpoint, or empty when there is none, it is unreadable, or
+     *         the file no longer starts with the checkpointed prefix
+     */
+    public static Optional<Checkpoint> load(final Path checkpointFile, final Path measurementsFile) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(checkpointFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return Optional.empty();
+            }
+            final long offset = in.readLong();
+            final long fingerprint = in.readLong();
+            if (Files.size(measurementsFile) < offset || fingerprint(measurementsFile, offset) != fingerprint) {
+                return Optional.empty();
+            }
+            return Optional.of(new Checkpoint(offset, StationTable.readFrom(in)));
+        }
+        catch (IOException e) {
+            // a missing, truncated or corrupt checkpoint only costs a full scan
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Writes the checkpoint. The file is replaced atomically, so a crash never
+     * leaves a half written checkpoint behind.
+     *
+     * @param checkpointFile -- file to write
+     * @param measurementsFile -- file the checkpoint is taken of
+     */
+    public void save(final Path checkpointFile, final Path measurementsFile) {
+        final Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(this.offset);
+                out.writeLong(fingerprint(measurementsFile, this.offset));
+                this.table.writeTo(out);
+            }
+            Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Fingerprint of the first length bytes of a file, a CRC of the first and
+     * last FINGERPRINT_WINDOW bytes of that prefix.
+     */
+    static long fingerprint(final Path file, final long length) throws IOException {
+        final CRC32C crc = new CRC32C();
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_WINDOW);
+            update(crc, fc, buffer, 0, Math.min(length, FINGERPRINT_WINDOW));
+            update(crc, fc, buffer, Math.max(0, length - FINGERPRINT_WINDOW), length);
+        }
+        return crc.getValue();
+    }
+
+    private static void update(final CRC32C crc, final FileChannel fc, final ByteBuffer buffer, final long from, final long to) throws IOException {
+        buffer.clear().limit((int) (to - from));
+        long position = from;
+        while (buffer.hasRemaining()) {
+            final int read = fc.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("File is shorter than the checkpoint");
+            }
+            position += read;
+        }
+        crc.update(buffer.flip());
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Histograms of the measurements of many stations, indexed by station id,
+ * for exact percentiles without keeping the measurements.
+ *
+ * Measurements have one decimal in [-99.9, 99.9], so a station needs 1999
+ * buckets of integer tenths. Buckets are 16 bit counters, a bucket which wraps
+ * around carries into a second array which is only allocated for the stations
+ * that need it. A station's histogram is allocated with its first measurement.
+ */
+public final class HistogramStore {
+    private static final int MIN_TENTHS = -999;
+    private static final int BUCKETS = 1999;
+    private static final int[] PERCENTILES = { 50, 90, 99 };
+
+    // low 16 bits of every bucket
+    private char[][] counts;
+    // multiples of 65536 of every bucket, null until a bucket wraps around
+    private int[][] carries;
+
+    public HistogramStore(final int capacity) {
+        this.counts = new char[0][];
+        this.carries = new int[0][];
+        this.ensureCapacity(capacity);
+    }
+
+    /**
+     * Grows the arrays so ids up to capacity - 1 can be used.
+     *
+     * @param capacity -- number of stations to hold
+     */
+    public void ensureCapacity(final int capacity) {
+        if (capacity <= this.counts.length) {
+            return;
+        }
+        this.counts = Arrays.copyOf(this.counts, capacity);
+        this.carries = Arrays.copyOf(this.carries, capacity);
+    }
+
+    /**
+     * Counts a value in the histogram of a station.
+     *
+     * @param id -- station id
+     * @param tenths -- a measurement in tenths
+     */
+    public void add(final int id, final int tenths) {
+        char[] buckets = this.counts[id];
+        if (buckets == null) {
+            buckets = this.counts[id] = new char[BUCKETS];
+        }
+        final int bucket = tenths - MIN_TENTHS;
+        if (++buckets[bucket] == 0) {
+            this.carry(id, bucket, 1);
+        }
+    }
+
+    /**
+     * Adds the histogram of a station in another store to a station of this
+     * one.
+     *
+     * @param id -- station id in this store
+     * @param other -- store to read from
+     * @param otherId -- station id in the other store
+     */
+    public void combine(final int id, final HistogramStore other, final int otherId) {
+        final char[] otherBuckets = other.counts[otherId];
+        if (otherBuckets == null) {
+            return;
+        }
+        char[] buckets = this.counts[id];
+        if (buckets == null) {
+            buckets = this.counts[id] = new char[BUCKETS];
+        }
+        final int[] otherCarries = other.carries[otherId];
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            final int sum = buckets[bucket] + otherBuckets[bucket];
+            buckets[bucket] = (char) sum;
+            final int carry = (sum >>> 16) + (otherCarries == null ? 0 : otherCarries[bucket]);
+            if (carry != 0) {
+                this.carry(id, bucket, carry);
+            }
+        }
+    }
+
+    /**
+     * Formats the p50, p90 and p99 of a station, each prefixed with a '/'. A
+     * percentile is the smallest measurement which at least that percentage of
+     * the measurements is less than or equal to.
+     *
+     * @param id -- station id, of a station with measurements
+     * @param out -- buffer to append to
+     */
+    public void format(final int id, final ByteBuffer out) {
+        long total = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            total += this.count(id, bucket);
+        }
+        if (total == 0) {
+            // callers skip stations without measurements, e.g. unused dictionary stations
+            throw new IllegalStateException("No measurements for station " + id);
+        }
+
+        long seen = 0;
+        int bucket = 0;
+        for (int percentile : PERCENTILES) {
+            // rank of the percentile, rounded up
+            final long rank = Math.max(1, (percentile * total + 99) / 100);
+            while (bucket < BUCKETS - 1 && seen + this.count(id, bucket) < rank) {
+                seen += this.count(id, bucket);
+                bucket++;
+            }
+            out.put((byte) '/');
+            AggregationStore.formatTenths(out, bucket + MIN_TENTHS);
+        }
+    }
+
+    private long count(final int id, final int bucket) {
+        final char[] buckets = this.counts[id];
+        if (buckets == null) {
+            return 0;
+        }
+        final int[] carries = this.carries[id];
+        return buckets[bucket] + (carries == null ? 0 : (long) carries[bucket] << 16);
+    }
+
+    private void carry(final int id, final int bucket, final int carry) {
+        if (this.carries[id] == null) {
+            this.carries[id] = new int[BUCKETS];
+        }
+        this.carries[id][bucket] += carry;
+    }
+}
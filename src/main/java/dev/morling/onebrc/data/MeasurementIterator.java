@@ -0,0 +1,171 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+import dev.morling.onebrc.files.DelimiterScanner;
+
+/**
+ * Cursor which reads bytes from the segment and parses the next measurement.
+ * Instead of creating an object per line, next() exposes the position, length
+ * and hash of the station name and the parsed value through its accessors.
+ * Lines end with '\n' or "\r\n".
+ *
+ * With a StationFilter, hasNext checks every station right after its ';' and
+ * skips the lines of rejected stations to the next new line, their values are
+ * never parsed.
+ */
+public class MeasurementIterator {
+    // the SWAR parser reads the value as a little endian long
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final MemorySegment segment;
+    private final DelimiterScanner scanner;
+    private final StationFilter filter;
+    private long currentIdx;
+    // ';' of the accepted station hasNext stopped at, only used with a filter
+    private long pendingSeparatorIdx;
+    private long maxSize;
+
+    private long stationOffset;
+    private int stationLength;
+    private int stationHash;
+    // measurement as an integer number of tenths, e.g. -12.3 is -123
+    private int tenths;
+
+    public MeasurementIterator(final MemorySegment segment) {
+        this(segment, null);
+    }
+
+    /**
+     * @param segment -- line aligned chunk
+     * @param filter -- stations to return, null for all
+     */
+    public MeasurementIterator(final MemorySegment segment, final StationFilter filter) {
+        this.segment = segment;
+        this.scanner = DelimiterScanner.create(segment);
+        this.filter = filter;
+        this.currentIdx = 0;
+        this.maxSize = segment.byteSize();
+    }
+
+    public boolean hasNext() {
+        if (this.filter == null) {
+            return this.currentIdx < this.maxSize;
+        }
+
+        while (this.currentIdx < this.maxSize) {
+            final long separatorIdx = this.scanner.scanStation(this.currentIdx);
+            if (this.filter.accepts(this.segment, this.scanner.stationOffset(), this.scanner.stationLength(), this.scanner.stationHash())) {
+                this.pendingSeparatorIdx = separatorIdx;
+                return true;
+            }
+            this.currentIdx = this.scanner.nextLine(separatorIdx + 1);
+        }
+        return false;
+    }
+
+    public void next() {
+        // the scanner hashes the station name while looking for the separator, with
+        // a filter hasNext already scanned the station
+        final long separatorIdx = this.filter == null ? this.scanner.scanStation(this.currentIdx) : this.pendingSeparatorIdx;
+        this.stationOffset = this.scanner.stationOffset();
+        this.stationLength = this.scanner.stationLength();
+        this.stationHash = this.scanner.stationHash();
+
+        final long valueIdx = separatorIdx + 1;
+        if (valueIdx + Long.BYTES <= this.maxSize) {
+            this.tenths = this.parseTenths(valueIdx);
+        }
+        else {
+            this.tenths = this.parseTenthsTail(valueIdx);
+        }
+    }
+
+    public long stationOffset() {
+        return this.stationOffset;
+    }
+
+    public int stationLength() {
+        return this.stationLength;
+    }
+
+    public int stationHash() {
+        return this.stationHash;
+    }
+
+    /**
+     * Returns the measurement as an integer number of tenths.
+     */
+    public int tenths() {
+        return this.tenths;
+    }
+
+    /**
+     * Parses a value of the form -?\d{1,2}\.\d from a single long read without
+     * branching on the individual characters. The position of the '.' is the
+     * only byte in 1..3 with bit 4 cleared, digits have it set.
+     *
+     * @param valueIdx -- index of the first byte of the value
+     * @return value in tenths
+     */
+    private int parseTenths(final long valueIdx) {
+        final long word = segment.get(WORD, valueIdx);
+        final int dotPos = Long.numberOfTrailingZeros(~word & 0x10101000L);
+        // all ones when the value starts with '-', zero otherwise
+        final long signed = (~word << 59) >> 63;
+        final long signMask = ~(signed & 0xFF);
+        // line up the digits at bytes 2, 3 and 5 and keep their low nibbles
+        final long digits = ((word & signMask) << (28 - dotPos)) & 0x0F000F0F00L;
+        // 100 * tens + 10 * ones + tenths ends up in bits 32..41
+        final long absValue = ((digits * 0x640a0001L) >>> 32) & 0x3FF;
+
+        // skip the value, the '.', the decimal and the new line, which is "\r\n" in files
+        // written on Windows. The terminator is at byte 3..5, always within the word
+        final int terminatorIdx = (dotPos >>> 3) + 2;
+        final long terminator = (word >>> (terminatorIdx << 3)) & 0xFF;
+        this.currentIdx = valueIdx + terminatorIdx + (terminator == '\r' ? 2 : 1);
+        return (int) ((absValue ^ signed) - signed);
+    }
+
+    /**
+     * Parses the value byte by byte, used at the end of the segment where a long
+     * read would run past the end.
+     */
+    private int parseTenthsTail(long idx) {
+        final boolean negative = segment.get(ValueLayout.JAVA_BYTE, idx) == '-';
+        if (negative) {
+            idx++;
+        }
+
+        int value = 0;
+        while (idx < this.maxSize) {
+            final byte currentByte = segment.get(ValueLayout.JAVA_BYTE, idx++);
+            if (currentByte == '\n') {
+                break;
+            }
+            if (currentByte != '.' && currentByte != '\r') {
+                value = value * 10 + (currentByte - '0');
+            }
+        }
+
+        this.currentIdx = idx;
+        return negative ? -value : value;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+/**
+ * Open addressing table of measurement aggregates which lives entirely
+ * off-heap, so a worker which reuses one table for all of its chunks doesn't
+ * allocate on the heap while it scans.
+ *
+ * Every slot has a fixed stride of 32 bytes:
+ *
+ * <pre>
+ * int hash | int key offset | int key length | short min | short max | long sum | long count
+ * </pre>
+ *
+ * Key offsets point into a second segment holding all station names back to
+ * back. A slot is in use once its count is non zero. Both segments belong to
+ * the arena of the table and are freed when the table is closed, grown
+ * segments are kept until then.
+ */
+public class OffHeapStationTable implements AutoCloseable {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final long STRIDE = 32;
+    private static final long HASH = 0;
+    private static final long KEY_OFFSET = 4;
+    private static final long KEY_LENGTH = 8;
+    private static final long MIN = 12;
+    private static final long MAX = 14;
+    private static final long SUM = 16;
+    private static final long COUNT = 24;
+
+    private final Arena arena;
+    private MemorySegment slots;
+    private long mask;
+    private int size;
+    private MemorySegment keys;
+    private int keyBytesUsed;
+
+    public OffHeapStationTable() {
+        // shared, the table is created by the scheduler and used by a worker thread
+        this.arena = Arena.ofShared();
+        this.slots = this.arena.allocate(INITIAL_CAPACITY * STRIDE, Long.BYTES);
+        this.mask = INITIAL_CAPACITY - 1;
+        this.size = 0;
+        this.keys = this.arena.allocate(INITIAL_CAPACITY * 16L);
+        this.keyBytesUsed = 0;
+    }
+
+    /**
+     * Adds every measurement of a line aligned chunk.
+     *
+     * @param chunk -- lines of the form station;value
+     * @return the number of lines added
+     */
+    public int addAll(final MemorySegment chunk) {
+        return this.addAll(chunk, null);
+    }
+
+    /**
+     * Adds every measurement of a line aligned chunk of the stations accepted
+     * by the filter.
+     *
+     * @param chunk -- lines of the form station;value
+     * @param filter -- stations to add, null for all
+     * @return the number of lines added
+     */
+    public int addAll(final MemorySegment chunk, final StationFilter filter) {
+        final MeasurementIterator measurements = new MeasurementIterator(chunk, filter);
+        int lines = 0;
+        while (measurements.hasNext()) {
+            measurements.next();
+            this.add(chunk, measurements.stationOffset(), measurements.stationLength(), measurements.stationHash(), measurements.tenths());
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Adds a measurement for the station stored in the segment.
+     *
+     * @param segment -- segment holding the station name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     * @param hash -- hash of the name, computed while scanning
+     * @param tenths -- a measurement in tenths
+     */
+    public void add(final MemorySegment segment, final long offset, final int length, final int hash, final int tenths) {
+        long slot = spread(hash) & this.mask;
+        while (true) {
+            final long base = slot * STRIDE;
+            final long count = this.slots.get(ValueLayout.JAVA_LONG, base + COUNT);
+            if (count == 0) {
+                this.insert(base, segment, offset, length, hash, tenths);
+                return;
+            }
+            if (this.slots.get(ValueLayout.JAVA_INT, base + HASH) == hash && this.matches(base, segment, offset, length)) {
+                this.slots.set(ValueLayout.JAVA_SHORT, base + MIN, (short) Math.min(this.slots.get(ValueLayout.JAVA_SHORT, base + MIN), tenths));
+                this.slots.set(ValueLayout.JAVA_SHORT, base + MAX, (short) Math.max(this.slots.get(ValueLayout.JAVA_SHORT, base + MAX), tenths));
+                this.slots.set(ValueLayout.JAVA_LONG, base + SUM, this.slots.get(ValueLayout.JAVA_LONG, base + SUM) + tenths);
+                this.slots.set(ValueLayout.JAVA_LONG, base + COUNT, count + 1);
+                return;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Copies the stations into a heap table, e.g. to merge them once the scan is
+     * done.
+     *
+     * @return a new table with the same stations and aggregates
+     */
+    public StationTable toStationTable() {
+        final StationTable table = new StationTable();
+        for (long base = 0; base < this.slots.byteSize(); base += STRIDE) {
+            if (this.slots.get(ValueLayout.JAVA_LONG, base + COUNT) == 0) {
+                continue;
+            }
+            table.combine(this.keys, this.slots.get(ValueLayout.JAVA_INT, base + KEY_OFFSET), this.slots.get(ValueLayout.JAVA_INT, base + KEY_LENGTH),
+                    this.slots.get(ValueLayout.JAVA_INT, base + HASH),
+                    this.slots.get(ValueLayout.JAVA_SHORT, base + MIN), this.slots.get(ValueLayout.JAVA_SHORT, base + MAX),
+                    this.slots.get(ValueLayout.JAVA_LONG, base + SUM), this.slots.get(ValueLayout.JAVA_LONG, base + COUNT));
+        }
+        return table;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * Frees the off-heap memory of the table.
+     */
+    @Override
+    public void close() {
+        this.arena.close();
+    }
+
+    private void insert(final long base, final MemorySegment segment, final long offset, final int length, final int hash, final int tenths) {
+        if (this.keyBytesUsed + length > this.keys.byteSize()) {
+            final MemorySegment keys = this.arena.allocate(Math.max(this.keys.byteSize() * 2, this.keyBytesUsed + length));
+            MemorySegment.copy(this.keys, 0, keys, 0, this.keyBytesUsed);
+            this.keys = keys;
+        }
+        MemorySegment.copy(segment, offset, this.keys, this.keyBytesUsed, length);
+
+        this.slots.set(ValueLayout.JAVA_INT, base + HASH, hash);
+        this.slots.set(ValueLayout.JAVA_INT, base + KEY_OFFSET, this.keyBytesUsed);
+        this.slots.set(ValueLayout.JAVA_INT, base + KEY_LENGTH, length);
+        this.slots.set(ValueLayout.JAVA_SHORT, base + MIN, (short) tenths);
+        this.slots.set(ValueLayout.JAVA_SHORT, base + MAX, (short) tenths);
+        this.slots.set(ValueLayout.JAVA_LONG, base + SUM, tenths);
+        this.slots.set(ValueLayout.JAVA_LONG, base + COUNT, 1);
+        this.keyBytesUsed += length;
+
+        // keep the load factor at 1/2 so probe chains stay short
+        if (++this.size * 2 > this.mask + 1) {
+            this.grow();
+        }
+    }
+
+    private void grow() {
+        final MemorySegment old = this.slots;
+        this.slots = this.arena.allocate(old.byteSize() * 2, Long.BYTES);
+        this.mask = (this.mask << 1) | 1;
+        for (long oldBase = 0; oldBase < old.byteSize(); oldBase += STRIDE) {
+            if (old.get(ValueLayout.JAVA_LONG, oldBase + COUNT) == 0) {
+                continue;
+            }
+            long slot = spread(old.get(ValueLayout.JAVA_INT, oldBase + HASH)) & this.mask;
+            while (this.slots.get(ValueLayout.JAVA_LONG, slot * STRIDE + COUNT) != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            MemorySegment.copy(old, oldBase, this.slots, slot * STRIDE, STRIDE);
+        }
+    }
+
+    private boolean matches(final long base, final MemorySegment segment, final long offset, final int length) {
+        if (this.slots.get(ValueLayout.JAVA_INT, base + KEY_LENGTH) != length) {
+            return false;
+        }
+        final long keyOffset = this.slots.get(ValueLayout.JAVA_INT, base + KEY_OFFSET);
+        return MemorySegment.mismatch(this.keys, keyOffset, keyOffset + length, segment, offset, offset + length) == -1;
+    }
+
+    private static long spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Partial results of a part of the measurements, e.g. of a byte range of the
+ * file processed by another process or host. A partial holds the names and
+ * exact integer aggregates of its stations, so merging partials gives the same
+ * result as processing the whole file at once.
+ */
+public class Partials {
+    private static final int MAGIC = 0x31425250; // "1BRP"
+    private static final int VERSION = 1;
+
+    private Partials() {
+    }
+
+    /**
+     * Writes the aggregates of a table as a partial.
+     *
+     * @param partial -- file to write
+     * @param table -- aggregates to write
+     */
+    public static void write(final Path partial, final StationTable table) {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(partial)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            table.writeTo(out);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads a partial written by write.
+     *
+     * @param partial -- file to read
+     * @return table of the aggregates in the partial
+     * @throws IllegalArgumentException when the file is not a partial
+     */
+    public static StationTable read(final Path partial) {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(partial)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("Not a partial result file: " + partial);
+            }
+            return StationTable.readFrom(in);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
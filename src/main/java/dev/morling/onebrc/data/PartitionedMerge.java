@@ -0,0 +1,233 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Merges many StationTables into one sorted result in parallel.
+ *
+ * Stations are partitioned into shards by their hash. Every shard is owned by
+ * a single thread, which merges the stations of that shard from all tables and
+ * then sorts them by their UTF-8 bytes, so no locking is needed. The sorted
+ * shards are then concatenated with a k-way merge.
+ */
+public class PartitionedMerge {
+
+    private PartitionedMerge() {
+    }
+
+    /**
+     * Merges the tables and returns the aggregates sorted by station name.
+     *
+     * @param tables -- tables to merge, e.g. one per worker or chunk
+     * @param shards -- number of shards and merge threads
+     * @return aggregates in station name order
+     */
+    public static Map<String, MeasurementAggregation> mergeSorted(final List<StationTable> tables, final int shards) {
+        final Shards merged = merge(tables, shards);
+        merged.sort();
+        return merged.toMap();
+    }
+
+    /**
+     * Merges the tables and writes the result sorted by station name, see
+     * ResultWriter.
+     *
+     * @param tables -- tables to merge, e.g. one per worker or chunk
+     * @param shards -- number of shards and merge threads
+     * @param out -- channel to write the result to
+     */
+    public static void writeSorted(final List<StationTable> tables, final int shards, final WritableByteChannel out) throws IOException {
+        final Shards merged = merge(tables, shards);
+        merged.sort();
+        merged.writeTo(out);
+    }
+
+    /**
+     * Merges the tables into shards without sorting them yet, so the phases
+     * can be timed on their own.
+     *
+     * @param tables -- tables to merge, e.g. one per worker or chunk
+     * @param shards -- number of shards and merge threads
+     * @return the merged shards
+     */
+    public static Shards merge(final List<StationTable> tables, final int shards) {
+        final StationTable[] merged = new StationTable[shards];
+        inParallel(shards, "merge-shard-", shard -> merged[shard] = mergeShard(tables, shard, shards));
+        return new Shards(merged);
+    }
+
+    /**
+     * Runs the task for every shard, on a thread of its own when there is more
+     * than one.
+     */
+    private static void inParallel(final int shards, final String name, final IntConsumer task) {
+        if (shards == 1) {
+            task.accept(0);
+            return;
+        }
+
+        final List<Thread> threads = new ArrayList<>(shards);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (int i = 0; i < shards; i++) {
+            final int shard = i;
+            threads.add(Thread.ofPlatform().name(name + shard).start(() -> {
+                try {
+                    task.accept(shard);
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for merge shards", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Merge shard failed", failure.get());
+        }
+    }
+
+    /**
+     * Returns the shard of a station hash. The table slots use the low bits of
+     * the hash, so the shard is taken from the high bits of a multiplication to
+     * keep the stations of one shard spread over its table.
+     */
+    static int shardOf(final int hash, final int shards) {
+        return (int) (((hash * 0x9E3779B9) & 0xFFFFFFFFL) * shards >>> 32);
+    }
+
+    private static StationTable mergeShard(final List<StationTable> tables, final int shard, final int shards) {
+        final StationTable merged = new StationTable();
+        for (StationTable table : tables) {
+            for (int id = 0; id < table.size(); id++) {
+                if (shardOf(table.hash(id), shards) == shard) {
+                    merged.combine(table, id);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * Merged tables of disjoint stations, one per shard. Every shard is sorted
+     * on its own, the sorted shards are then concatenated with a k-way merge.
+     */
+    public static class Shards {
+        private final StationTable[] tables;
+        // ids of every shard in name order, set by sort
+        private final int[][] orders;
+
+        private Shards(final StationTable[] tables) {
+            this.tables = tables;
+            this.orders = new int[tables.length][];
+        }
+
+        /**
+         * Sorts the stations of every shard by their UTF-8 bytes, one thread per
+         * shard.
+         */
+        public void sort() {
+            inParallel(this.tables.length, "sort-shard-", shard -> this.orders[shard] = this.tables[shard].sortedIds());
+        }
+
+        /**
+         * Returns the aggregates in station name order, see sort.
+         */
+        public Map<String, MeasurementAggregation> toMap() {
+            final Map<String, MeasurementAggregation> result = new LinkedHashMap<>(this.stations() * 2);
+            this.concatenate((table, id) -> result.put(table.name(id), table.aggregation(id)));
+            return result;
+        }
+
+        /**
+         * Writes the result in station name order, see sort and ResultWriter.
+         *
+         * @param out -- channel to write the result to
+         */
+        public void writeTo(final WritableByteChannel out) throws IOException {
+            long nameBytes = 0;
+            for (StationTable table : this.tables) {
+                nameBytes += table.nameBytes();
+            }
+            final ResultWriter writer = new ResultWriter(this.stations(), nameBytes);
+            this.concatenate((table, id) -> table.appendTo(id, writer));
+            writer.writeTo(out);
+        }
+
+        private int stations() {
+            int stations = 0;
+            for (StationTable table : this.tables) {
+                stations += table.size();
+            }
+            return stations;
+        }
+
+        /**
+         * k-way merge of the sorted shards. Shards hold disjoint stations, so this
+         * is a plain concatenation in name order.
+         */
+        private void concatenate(final ObjIntConsumer<StationTable> station) {
+            final PriorityQueue<Cursor> heads = new PriorityQueue<>(Math.max(1, this.tables.length),
+                    (a, b) -> a.table.compareNames(a.id(), b.table, b.id()));
+            for (int shard = 0; shard < this.tables.length; shard++) {
+                if (this.tables[shard].size() > 0) {
+                    heads.add(new Cursor(this.tables[shard], this.orders[shard]));
+                }
+            }
+
+            while (!heads.isEmpty()) {
+                final Cursor head = heads.poll();
+                station.accept(head.table, head.id());
+                if (++head.idx < head.order.length) {
+                    heads.add(head);
+                }
+            }
+        }
+    }
+
+    private static class Cursor {
+        private final StationTable table;
+        private final int[] order;
+        private int idx;
+
+        private Cursor(final StationTable table, final int[] order) {
+            this.table = table;
+            this.order = order;
+            this.idx = 0;
+        }
+
+        private int id() {
+            return this.order[this.idx];
+        }
+    }
+}
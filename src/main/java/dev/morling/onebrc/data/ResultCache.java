@@ -0,0 +1,235 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+import dev.morling.onebrc.files.FastFiles;
+
+/**
+ * On-disk cache of final aggregates, so repeated queries over unchanged files
+ * don't scan them again.
+ *
+ * Every query (its files and the options which change the result) has one
+ * entry file named after a hash of the query. An entry holds the fingerprint
+ * of the files at the time it was stored: the size, modification time and a
+ * CRC of a few sampled chunks of every file. An entry whose fingerprint no
+ * longer matches is deleted on lookup. The modification time of an entry is
+ * its last use, when the cache grows past its size the least recently used
+ * entries are deleted.
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x31425251; // "1BRQ"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".1brq";
+    private static final int FINGERPRINT_SAMPLES = 8;
+    private static final long FINGERPRINT_SAMPLE_SIZE = 64 * 1024L;
+
+    private final Path directory;
+    private final long maxSize;
+
+    /**
+     * @param directory -- directory of the entries, created when missing
+     * @param maxSize -- max total size of the entries in bytes
+     */
+    public ResultCache(final Path directory, final long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cached aggregates of a query, or empty when there are none or
+     * the files changed since they were stored.
+     *
+     * @param query -- files and options of the query, see store
+     * @param files -- input files of the query
+     * @return the aggregates
+     */
+    public Optional<StationTable> lookup(final String query, final List<Path> files) {
+        final Path entry = this.entry(query);
+        final boolean stale;
+        final StationTable table;
+        try {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(entry)))) {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || !readString(in).equals(query)) {
+                    return Optional.empty();
+                }
+                stale = !readString(in).equals(fingerprint(files));
+                table = stale ? null : StationTable.readFrom(in);
+            }
+            if (stale) {
+                // the files changed, the entry will never match again
+                Files.deleteIfExists(entry);
+                return Optional.empty();
+            }
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(table);
+        }
+        catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+        catch (IOException e) {
+            // a truncated or corrupt entry only costs a scan
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores the aggregates of a query and evicts the least recently used
+     * entries beyond the max size. The entry is written to a temporary file
+     * first, so concurrent runs never read a half written entry.
+     *
+     * @param query -- files and options of the query, everything which changes the result
+     * @param files -- input files of the query
+     * @param table -- final aggregates of the query
+     */
+    public void store(final String query, final List<Path> files, final StationTable table) {
+        final Path entry = this.entry(query);
+        try {
+            Files.createDirectories(this.directory);
+            final Path tmp = Files.createTempFile(this.directory, "entry", ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    writeString(out, query);
+                    writeString(out, fingerprint(files));
+                    table.writeTo(out);
+                }
+                Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                // only left over when the entry couldn't be written, evict never sees it
+                Files.deleteIfExists(tmp);
+            }
+            this.evict();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a string of any length as its UTF-8 byte count and bytes, the key
+     * of a query over many files or stations is well beyond the 64KB of
+     * writeUTF.
+     */
+    private static void writeString(final DataOutputStream out, final String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            throw new IOException("Invalid string length: " + length);
+        }
+        final byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) {
+            throw new EOFException();
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Deletes the least recently used entries until the cache fits its max
+     * size again.
+     */
+    private void evict() throws IOException {
+        record Entry(Path path, long size, FileTime lastUse) {
+        }
+
+        final List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> paths = Files.list(this.directory)) {
+            for (Path path : paths.filter(p -> p.getFileName().toString().endsWith(SUFFIX)).toList()) {
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    entries.add(new Entry(path, attributes.size(), attributes.lastModifiedTime()));
+                }
+                catch (NoSuchFileException e) {
+                    // evicted by a concurrent run
+                }
+            }
+        }
+
+        long size = entries.stream().mapToLong(Entry::size).sum();
+        entries.sort(Comparator.comparing(Entry::lastUse));
+        for (Entry entry : entries) {
+            if (size <= this.maxSize) {
+                break;
+            }
+            Files.deleteIfExists(entry.path());
+            size -= entry.size();
+        }
+    }
+
+    private Path entry(final String query) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(query.getBytes(StandardCharsets.UTF_8));
+            return this.directory.resolve(HexFormat.of().formatHex(digest, 0, 16) + SUFFIX);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Fingerprint of the files, their sizes and modification times and a CRC of
+     * chunks sampled all over each file, see FastFiles.sampleChunks.
+     */
+    static String fingerprint(final List<Path> files) throws IOException {
+        final StringBuilder fingerprint = new StringBuilder();
+        for (Path file : files) {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final CRC32C crc = new CRC32C();
+            try (Arena arena = Arena.ofConfined()) {
+                final MemorySegment segment = FastFiles.mapFile(file, arena);
+                for (MemorySegment sample : FastFiles.sampleChunks(List.of(segment), FINGERPRINT_SAMPLES, FINGERPRINT_SAMPLE_SIZE)) {
+                    crc.update(sample.asByteBuffer());
+                }
+            }
+            fingerprint.append(attributes.size()).append(':')
+                    .append(attributes.lastModifiedTime().toMillis()).append(':')
+                    .append(Long.toHexString(crc.getValue())).append('\n');
+        }
+        return fingerprint.toString();
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Formats the sorted result, {station=min/mean/max, ...} or with histograms
+ * {station=min/mean/max/p50/p90/p99, ...}, into a single byte buffer which
+ * is written with one channel write. Names are copied as UTF-8 bytes and
+ * numbers are formatted from integer tenths, so nothing is allocated per
+ * station.
+ */
+public class ResultWriter {
+    // '=', five '/', ", " and six numbers of up to 7 bytes, e.g. -3276.8
+    private static final int MAX_ENTRY_OVERHEAD = 50;
+
+    private final ByteBuffer buffer;
+    private boolean first;
+
+    /**
+     * @param stations -- number of stations which will be added
+     * @param nameBytes -- total length of their names
+     */
+    public ResultWriter(final int stations, final long nameBytes) {
+        this.buffer = ByteBuffer.allocate(Math.toIntExact(nameBytes + (long) stations * MAX_ENTRY_OVERHEAD + 3));
+        this.buffer.put((byte) '{');
+        this.first = true;
+    }
+
+    /**
+     * Appends the next station, stations have to be added in output order.
+     *
+     * @param name -- array holding the UTF-8 name
+     * @param offset -- start of the name in the array
+     * @param length -- length of the name
+     * @param aggregates -- store holding the aggregates of the station
+     * @param id -- id of the station in the store
+     */
+    public void add(final byte[] name, final int offset, final int length, final AggregationStore aggregates, final int id) {
+        this.add(name, offset, length, aggregates, null, id);
+    }
+
+    /**
+     * Appends the next station with its percentiles, stations have to be added
+     * in output order.
+     *
+     * @param name -- array holding the UTF-8 name
+     * @param offset -- start of the name in the array
+     * @param length -- length of the name
+     * @param aggregates -- store holding the aggregates of the station
+     * @param histograms -- store holding the histogram of the station, null to leave the percentiles out
+     * @param id -- id of the station in the stores
+     */
+    public void add(final byte[] name, final int offset, final int length, final AggregationStore aggregates, final HistogramStore histograms,
+                    final int id) {
+        if (!this.first) {
+            this.buffer.put((byte) ',').put((byte) ' ');
+        }
+        this.first = false;
+        this.buffer.put(name, offset, length).put((byte) '=');
+        aggregates.format(id, this.buffer);
+        if (histograms != null) {
+            histograms.format(id, this.buffer);
+        }
+    }
+
+    /**
+     * Closes the result with "}\n" and writes it.
+     *
+     * @param out -- channel to write to, it is not closed
+     */
+    public void writeTo(final WritableByteChannel out) throws IOException {
+        this.buffer.put((byte) '}').put((byte) '\n').flip();
+        while (this.buffer.hasRemaining()) {
+            out.write(this.buffer);
+        }
+    }
+
+    /**
+     * Returns a channel of the standard output which bypasses System.out and
+     * its charset encoder.
+     */
+    public static WritableByteChannel stdout() {
+        System.out.flush();
+        return new FileOutputStream(FileDescriptor.out).getChannel();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Collision free (perfect) hash over a fixed set of stations, usually the
+ * stations found in a sample of the input, see sample.
+ *
+ * The stations are hashed with the hash the scanner computes while looking for
+ * the separator, so a lookup costs one bucket read and one slot read, and the
+ * caller verifies the name only once. Hash and displace: the hash picks a
+ * bucket, every bucket stores a displacement which was chosen so that all of
+ * its stations land in distinct free slots. Stations which aren't in the
+ * dictionary land on any slot, so a found id still has to be verified.
+ */
+public class StationDictionary {
+    private static final int MAX_DISPLACEMENT = 1 << 20;
+    // slots per station, a sparser table leaves more room for the displacements
+    private static final int LOAD_FACTOR = 2;
+    private static final int STATIONS_PER_BUCKET = 4;
+
+    private final StationTable stations;
+    private final int buckets;
+    private final int[] displacements;
+    // id + 1 of the station in a slot, 0 when the slot is empty
+    private final int[] slots;
+    private final int mask;
+    // whether every station got a slot, see build
+    private final boolean complete;
+
+    private StationDictionary(final StationTable stations, final int buckets, final int[] displacements, final int[] slots,
+                              final boolean complete) {
+        this.stations = stations;
+        this.complete = complete;
+        this.buckets = buckets;
+        this.displacements = displacements;
+        this.slots = slots;
+        this.mask = slots.length - 1;
+    }
+
+    /**
+     * Collects the stations of the sampled chunks and builds a dictionary over
+     * them, see FastFiles.sampleChunks.
+     *
+     * @param samples -- line aligned chunks of the input
+     * @return the dictionary
+     */
+    public static StationDictionary sample(final List<MemorySegment> samples) {
+        final StationTable stations = new StationTable();
+        for (MemorySegment sample : samples) {
+            stations.addAll(sample);
+        }
+        return build(stations);
+    }
+
+    /**
+     * Builds a dictionary over the stations of a table. Station ids are the
+     * ids in that table. Stations whose full hash equals the hash of an earlier
+     * station are left out, they end up in the fallback table of the workers.
+     *
+     * @param stations -- stations to index
+     * @return the dictionary
+     */
+    public static StationDictionary build(final StationTable stations) {
+        final int size = Math.max(1, stations.size());
+        final int buckets = Math.max(1, size / STATIONS_PER_BUCKET);
+        for (int slotCount = Integer.highestOneBit(size * LOAD_FACTOR - 1) << 1;; slotCount <<= 1) {
+            final StationDictionary dictionary = tryBuild(stations, buckets, slotCount);
+            if (dictionary != null) {
+                return dictionary;
+            }
+        }
+    }
+
+    private static StationDictionary tryBuild(final StationTable stations, final int buckets, final int slotCount) {
+        // ids of the stations of every bucket, largest buckets first as they are the hardest to place
+        final int[][] members = new int[buckets][0];
+        for (int id = 0; id < stations.size(); id++) {
+            final int bucket = bucketOf(stations.hash(id), buckets);
+            members[bucket] = Arrays.copyOf(members[bucket], members[bucket].length + 1);
+            members[bucket][members[bucket].length - 1] = id;
+        }
+        final Integer[] order = new Integer[buckets];
+        for (int i = 0; i < buckets; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingInt(bucket -> -members[bucket].length));
+
+        final int mask = slotCount - 1;
+        final int[] displacements = new int[buckets];
+        final int[] slots = new int[slotCount];
+        final int[] placed = new int[STATIONS_PER_BUCKET * 8];
+        boolean complete = true;
+        for (int bucket : order) {
+            final int[] ids = members[bucket];
+            if (ids.length == 0) {
+                break;
+            }
+            final int[] candidate = ids.length <= placed.length ? placed : new int[ids.length];
+            int displacement = 0;
+            for (; displacement < MAX_DISPLACEMENT; displacement++) {
+                if (fits(stations, ids, displacement, mask, slots, candidate)) {
+                    break;
+                }
+            }
+            if (displacement == MAX_DISPLACEMENT) {
+                return null;
+            }
+            displacements[bucket] = displacement;
+            for (int i = 0; i < ids.length; i++) {
+                // a station with the same hash as an earlier one of the bucket is left out
+                if (candidate[i] >= 0) {
+                    slots[candidate[i]] = ids[i] + 1;
+                }
+                else {
+                    complete = false;
+                }
+            }
+        }
+        return new StationDictionary(stations, buckets, displacements, slots, complete);
+    }
+
+    /**
+     * Checks whether the stations of a bucket land in distinct free slots with
+     * the displacement, and stores their slots in candidate.
+     */
+    private static boolean fits(final StationTable stations, final int[] ids, final int displacement, final int mask, final int[] slots,
+                                final int[] candidate) {
+        for (int i = 0; i < ids.length; i++) {
+            final int hash = stations.hash(ids[i]);
+            final int slot = slotOf(hash, displacement, mask);
+            if (slots[slot] != 0) {
+                return false;
+            }
+            candidate[i] = slot;
+            for (int j = 0; j < i; j++) {
+                if (candidate[j] == slot) {
+                    if (stations.hash(ids[j]) != hash) {
+                        return false;
+                    }
+                    candidate[i] = -1;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the id of the dictionary station with the hash, or -1 when no
+     * station can have it. The caller verifies the name.
+     */
+    public int lookup(final int hash) {
+        return this.slots[slotOf(hash, this.displacements[bucketOf(hash, this.buckets)], this.mask)] - 1;
+    }
+
+    /**
+     * Returns whether the station stored in the segment is one of the stations
+     * of the dictionary, including the ones left out of the perfect hash.
+     *
+     * @param segment -- segment holding the station name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     * @param hash -- hash of the name, computed while scanning
+     */
+    public boolean contains(final MemorySegment segment, final long offset, final int length, final int hash) {
+        final int id = this.lookup(hash);
+        if (id >= 0 && this.stations.matches(id, segment, offset, length)) {
+            return true;
+        }
+        return !this.complete && this.stations.find(segment, offset, length, hash) >= 0;
+    }
+
+    /**
+     * Stations of the dictionary, ids are dictionary ids.
+     */
+    StationTable stations() {
+        return this.stations;
+    }
+
+    public int size() {
+        return this.stations.size();
+    }
+
+    private static int bucketOf(final int hash, final int buckets) {
+        return (int) (((hash * 0x9E3779B9) & 0xFFFFFFFFL) * buckets >>> 32);
+    }
+
+    private static int slotOf(final int hash, final int displacement, final int mask) {
+        // murmur3 finalizer of the hash and the displacement
+        int h = hash ^ (displacement * 0x85EBCA6B);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.TreeSet;
+
+import dev.morling.onebrc.files.DelimiterScanner;
+
+/**
+ * Include or exclude list of stations, checked against the raw name bytes
+ * right after the scanner found the ';', see MeasurementIterator.
+ *
+ * The names are compiled into a StationDictionary, so a check is one perfect
+ * hash lookup with the hash the scanner computed anyway and one byte compare.
+ */
+public class StationFilter {
+    private final StationDictionary stations;
+    private final boolean include;
+    // sorted names, identifies the filter in a ResultCache query
+    private final String key;
+
+    private StationFilter(final Collection<String> names, final boolean include) {
+        this.stations = compile(names);
+        this.include = include;
+        this.key = (include ? "include:" : "exclude:") + String.join("\n", new TreeSet<>(names));
+    }
+
+    /**
+     * Accepts only the named stations.
+     *
+     * @param names -- station names
+     */
+    public static StationFilter include(final Collection<String> names) {
+        return new StationFilter(names, true);
+    }
+
+    /**
+     * Accepts all stations except the named ones.
+     *
+     * @param names -- station names
+     */
+    public static StationFilter exclude(final Collection<String> names) {
+        return new StationFilter(names, false);
+    }
+
+    /**
+     * Returns whether the lines of the station stored in the segment are
+     * aggregated.
+     *
+     * @param segment -- segment holding the station name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     * @param hash -- hash of the name, computed while scanning
+     */
+    public boolean accepts(final MemorySegment segment, final long offset, final int length, final int hash) {
+        return this.stations.contains(segment, offset, length, hash) == this.include;
+    }
+
+    /**
+     * Returns the kind of the filter and its sorted names, equal for filters
+     * which accept the same stations.
+     */
+    public String key() {
+        return this.key;
+    }
+
+    private static StationDictionary compile(final Collection<String> names) {
+        final StationTable stations = new StationTable();
+        for (String name : names) {
+            final MemorySegment key = MemorySegment.ofArray(name.getBytes(StandardCharsets.UTF_8));
+            stations.indexOf(key, 0, (int) key.byteSize(), DelimiterScanner.hash(key, 0, (int) key.byteSize()));
+        }
+        return StationDictionary.build(stations);
+    }
+}
@@ -0,0 +1,444 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import dev.morling.onebrc.files.DelimiterScanner;
+
+/**
+ * Open addressing hash table of measurement aggregates keyed by the raw bytes
+ * of the station name.
+ *
+ * The caller computes the hash while scanning the line, and candidate keys are
+ * compared against the bytes in the mapped segment, so no String is created per
+ * line. Keys are copied back to back into one byte[] so comparisons are a
+ * single vectorized mismatch between two segments. Every station gets a dense
+ * id in insertion order, the slots only hold those ids and the aggregates live
+ * in an AggregationStore indexed by id.
+ */
+public final class StationTable {
+    private static final int INITIAL_CAPACITY = 1 << 10;
+    private static final int INSERTION_SORT_THRESHOLD = 12;
+
+    // id + 1 of the station stored in a slot, 0 when the slot is empty
+    private int[] slots;
+    private int mask;
+    private int size;
+
+    // all station names back to back, and a segment view of it for comparisons
+    private byte[] keyBytes;
+    private MemorySegment keySegment;
+    private int keyBytesUsed;
+    private int[] keyOffsets;
+    private int[] keyLengths;
+    private int[] hashes;
+    private final AggregationStore aggregates;
+    // stations indexed by a perfect hash, their ids are the dictionary ids
+    private final StationDictionary dictionary;
+    // histograms for percentiles, null unless enabled or combined from a table with histograms
+    private HistogramStore histograms;
+
+    public StationTable() {
+        this(null, false);
+    }
+
+    public StationTable(final StationDictionary dictionary) {
+        this(dictionary, false);
+    }
+
+    /**
+     * Creates a table which reserves the stations of the dictionary up front
+     * and finds them through the perfect hash. Other stations go through the
+     * regular probing. Reserved stations which are never added have no
+     * measurements and are skipped by combine.
+     *
+     * @param dictionary -- stations expected in the input, may be null
+     * @param histograms -- whether to keep a histogram per station for percentiles
+     */
+    public StationTable(final StationDictionary dictionary, final boolean histograms) {
+        this.slots = new int[INITIAL_CAPACITY];
+        this.mask = INITIAL_CAPACITY - 1;
+        this.size = 0;
+        this.keyBytes = new byte[INITIAL_CAPACITY * 8];
+        this.keySegment = MemorySegment.ofArray(this.keyBytes);
+        this.keyBytesUsed = 0;
+        this.keyOffsets = new int[INITIAL_CAPACITY / 2];
+        this.keyLengths = new int[INITIAL_CAPACITY / 2];
+        this.hashes = new int[INITIAL_CAPACITY / 2];
+        this.aggregates = new AggregationStore(INITIAL_CAPACITY / 2);
+        this.histograms = histograms ? new HistogramStore(INITIAL_CAPACITY / 2) : null;
+        if (dictionary != null) {
+            // inserted in dictionary order, so the ids match the dictionary ids
+            final StationTable stations = dictionary.stations();
+            for (int id = 0; id < stations.size(); id++) {
+                this.indexOf(stations.keySegment, stations.keyOffsets[id], stations.keyLengths[id], stations.hashes[id]);
+            }
+        }
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Adds a measurement for the station stored in the segment.
+     *
+     * @param segment -- segment holding the station name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     * @param hash -- hash of the name, computed while scanning
+     * @param tenths -- a measurement in tenths
+     */
+    public void add(final MemorySegment segment, final long offset, final int length, final int hash, final int tenths) {
+        final int id = this.indexOf(segment, offset, length, hash);
+        this.aggregates.add(id, tenths);
+        if (this.histograms != null) {
+            this.histograms.add(id, tenths);
+        }
+    }
+
+    /**
+     * Adds every measurement of a line aligned chunk.
+     *
+     * @param chunk -- lines of the form station;value
+     * @return the number of lines added
+     */
+    public int addAll(final MemorySegment chunk) {
+        return this.addAll(chunk, null);
+    }
+
+    /**
+     * Adds every measurement of a line aligned chunk of the stations accepted
+     * by the filter.
+     *
+     * @param chunk -- lines of the form station;value
+     * @param filter -- stations to add, null for all
+     * @return the number of lines added
+     */
+    public int addAll(final MemorySegment chunk, final StationFilter filter) {
+        final MeasurementIterator measurements = new MeasurementIterator(chunk, filter);
+        int lines = 0;
+        while (measurements.hasNext()) {
+            measurements.next();
+            this.add(chunk, measurements.stationOffset(), measurements.stationLength(), measurements.stationHash(), measurements.tenths());
+            lines++;
+        }
+        return lines;
+    }
+
+    /**
+     * Returns the id of the station stored in the segment, inserting it if it is
+     * not in the table yet.
+     */
+    public int indexOf(final MemorySegment segment, final long offset, final int length, final int hash) {
+        if (this.dictionary != null) {
+            final int id = this.dictionary.lookup(hash);
+            if (id >= 0 && this.matches(id, segment, offset, length)) {
+                return id;
+            }
+        }
+
+        int slot = spread(hash) & this.mask;
+        while (true) {
+            final int entry = this.slots[slot];
+            if (entry == 0) {
+                return this.insert(slot, segment, offset, length, hash);
+            }
+
+            final int id = entry - 1;
+            if (this.hashes[id] == hash && this.matches(id, segment, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Returns the id of the station stored in the segment, or -1 when it is not
+     * in the table. Unlike indexOf this never inserts, so threads may share a
+     * table nobody adds to.
+     */
+    public int find(final MemorySegment segment, final long offset, final int length, final int hash) {
+        int slot = spread(hash) & this.mask;
+        while (true) {
+            final int entry = this.slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+
+            final int id = entry - 1;
+            if (this.hashes[id] == hash && this.matches(id, segment, offset, length)) {
+                return id;
+            }
+            slot = (slot + 1) & this.mask;
+        }
+    }
+
+    /**
+     * Combines the aggregates of the other table into this one.
+     *
+     * @param other -- table to append to this table
+     * @return this table
+     */
+    public StationTable combine(final StationTable other) {
+        for (int otherId = 0; otherId < other.size; otherId++) {
+            this.combine(other, otherId);
+        }
+        return this;
+    }
+
+    /**
+     * Combines the aggregate of a single station of the other table into this
+     * one. A station without measurements is skipped, see the dictionary.
+     *
+     * @param other -- table to read from
+     * @param otherId -- station id in the other table
+     */
+    public void combine(final StationTable other, final int otherId) {
+        if (other.aggregates.count(otherId) == 0) {
+            return;
+        }
+        final int id = this.indexOf(other.keySegment, other.keyOffsets[otherId], other.keyLengths[otherId], other.hashes[otherId]);
+        this.aggregates.combine(id, other.aggregates, otherId);
+        if (other.histograms != null) {
+            if (this.histograms == null) {
+                this.histograms = new HistogramStore(this.hashes.length);
+            }
+            this.histograms.combine(id, other.histograms, otherId);
+        }
+    }
+
+    /**
+     * Combines the exact aggregate of a station stored elsewhere, e.g. in an
+     * OffHeapStationTable, into this table.
+     *
+     * @param segment -- segment holding the station name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     * @param hash -- hash of the name, see DelimiterScanner.hash
+     * @param min -- min in tenths
+     * @param max -- max in tenths
+     * @param sum -- sum in tenths
+     * @param count -- number of measurements
+     */
+    public void combine(final MemorySegment segment, final long offset, final int length, final int hash, final short min, final short max,
+                        final long sum, final long count) {
+        this.aggregates.combine(this.indexOf(segment, offset, length, hash), min, max, sum, count);
+    }
+
+    /**
+     * Writes the names and exact aggregates of all stations, see readFrom.
+     *
+     * @param out -- output to write to
+     */
+    public void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(this.size);
+        for (int id = 0; id < this.size; id++) {
+            out.writeShort(this.keyLengths[id]);
+            out.write(this.keyBytes, this.keyOffsets[id], this.keyLengths[id]);
+            this.aggregates.writeTo(id, out);
+        }
+    }
+
+    /**
+     * Reads the stations written by writeTo into a new table. Hashes are
+     * recomputed, so the table can be combined with tables built from a file.
+     *
+     * @param in -- input to read from
+     * @return the table
+     */
+    public static StationTable readFrom(final DataInput in) throws IOException {
+        final StationTable table = new StationTable();
+        final int stations = in.readInt();
+        for (int i = 0; i < stations; i++) {
+            final byte[] name = new byte[in.readUnsignedShort()];
+            in.readFully(name);
+            final MemorySegment key = MemorySegment.ofArray(name);
+            final int id = table.indexOf(key, 0, name.length, DelimiterScanner.hash(key, 0, name.length));
+            table.aggregates.readFrom(id, in);
+        }
+        return table;
+    }
+
+    /**
+     * Returns the ids of all stations sorted by the UTF-8 bytes of their names.
+     * Sorts with a three way radix quicksort, which partitions on one byte at a
+     * time, so shared prefixes are compared only once.
+     */
+    public int[] sortedIds() {
+        final int[] ids = new int[this.size];
+        for (int id = 0; id < this.size; id++) {
+            ids[id] = id;
+        }
+        this.sort(ids, 0, this.size, 0);
+        return ids;
+    }
+
+    /**
+     * Compares the names of two stations by their unsigned UTF-8 bytes.
+     *
+     * @param id -- station id in this table
+     * @param other -- table of the other station, may be this table
+     * @param otherId -- station id in the other table
+     */
+    public int compareNames(final int id, final StationTable other, final int otherId) {
+        final int offset = this.keyOffsets[id];
+        final int otherOffset = other.keyOffsets[otherId];
+        return Arrays.compareUnsigned(this.keyBytes, offset, offset + this.keyLengths[id], other.keyBytes, otherOffset,
+                otherOffset + other.keyLengths[otherId]);
+    }
+
+    /**
+     * Appends a station and its aggregates to the output.
+     *
+     * @param id -- station id
+     * @param writer -- output to append to
+     */
+    public void appendTo(final int id, final ResultWriter writer) {
+        writer.add(this.keyBytes, this.keyOffsets[id], this.keyLengths[id], this.aggregates, this.histograms, id);
+    }
+
+    /**
+     * Bytes of all station names, to size the output.
+     */
+    public int nameBytes() {
+        return this.keyBytesUsed;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public int hash(final int id) {
+        return this.hashes[id];
+    }
+
+    public String name(final int id) {
+        return new String(this.keyBytes, this.keyOffsets[id], this.keyLengths[id], StandardCharsets.UTF_8);
+    }
+
+    public MeasurementAggregation aggregation(final int id) {
+        return this.aggregates.toAggregation(id);
+    }
+
+    private int insert(final int slot, final MemorySegment segment, final long offset, final int length, final int hash) {
+        final int id = this.size++;
+        if (id == this.hashes.length) {
+            this.keyOffsets = Arrays.copyOf(this.keyOffsets, id * 2);
+            this.keyLengths = Arrays.copyOf(this.keyLengths, id * 2);
+            this.hashes = Arrays.copyOf(this.hashes, id * 2);
+            this.aggregates.ensureCapacity(id * 2);
+            if (this.histograms != null) {
+                this.histograms.ensureCapacity(id * 2);
+            }
+        }
+        if (this.keyBytesUsed + length > this.keyBytes.length) {
+            this.keyBytes = Arrays.copyOf(this.keyBytes, Math.max(this.keyBytes.length * 2, this.keyBytesUsed + length));
+            this.keySegment = MemorySegment.ofArray(this.keyBytes);
+        }
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, this.keyBytes, this.keyBytesUsed, length);
+        this.keyOffsets[id] = this.keyBytesUsed;
+        this.keyLengths[id] = length;
+        this.keyBytesUsed += length;
+        this.hashes[id] = hash;
+        this.slots[slot] = id + 1;
+
+        // keep the load factor at or below 1/2 so probe sequences stay short
+        if (this.size * 2 > this.slots.length) {
+            this.rehash(this.slots.length * 2);
+        }
+        return id;
+    }
+
+    private void rehash(final int capacity) {
+        this.slots = new int[capacity];
+        this.mask = capacity - 1;
+        for (int id = 0; id < this.size; id++) {
+            int slot = spread(this.hashes[id]) & this.mask;
+            while (this.slots[slot] != 0) {
+                slot = (slot + 1) & this.mask;
+            }
+            this.slots[slot] = id + 1;
+        }
+    }
+
+    private void sort(final int[] ids, int lo, int hi, int depth) {
+        while (hi - lo > INSERTION_SORT_THRESHOLD) {
+            // [lo, lt) has a smaller byte at depth than the pivot, [lt, gt] the same and (gt, hi) a larger one
+            final int pivot = this.byteAt(ids[(lo + hi) >>> 1], depth);
+            int lt = lo;
+            int gt = hi - 1;
+            int i = lo;
+            while (i <= gt) {
+                final int b = this.byteAt(ids[i], depth);
+                if (b < pivot) {
+                    swap(ids, lt++, i++);
+                }
+                else if (b > pivot) {
+                    swap(ids, i, gt--);
+                }
+                else {
+                    i++;
+                }
+            }
+            this.sort(ids, lo, lt, depth);
+            this.sort(ids, gt + 1, hi, depth);
+            if (pivot < 0) {
+                // names are unique, at most one of them ends at depth
+                return;
+            }
+            lo = lt;
+            hi = gt + 1;
+            depth++;
+        }
+
+        for (int i = lo + 1; i < hi; i++) {
+            for (int j = i; j > lo && this.compareNames(ids[j - 1], this, ids[j]) > 0; j--) {
+                swap(ids, j - 1, j);
+            }
+        }
+    }
+
+    /**
+     * Returns the byte of a name at depth, or -1 past its end so shorter names
+     * sort first.
+     */
+    private int byteAt(final int id, final int depth) {
+        return depth < this.keyLengths[id] ? this.keyBytes[this.keyOffsets[id] + depth] & 0xFF : -1;
+    }
+
+    private static void swap(final int[] ids, final int i, final int j) {
+        final int id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    boolean matches(final int id, final MemorySegment segment, final long offset, final int length) {
+        if (this.keyLengths[id] != length) {
+            return false;
+        }
+        final int keyOffset = this.keyOffsets[id];
+        return MemorySegment.mismatch(this.keySegment, keyOffset, keyOffset + length, segment, offset, offset + length) == -1;
+    }
+}
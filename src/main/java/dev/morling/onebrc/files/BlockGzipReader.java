@@ -0,0 +1,364 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads multi-member gzip files, e.g. BGZF files written by bgzip or by
+ * CreateMeasurements --gzip, with a fixed number of platform worker threads.
+ *
+ * Gzip members are independent, so they are inflated in parallel. Members are
+ * located by walking their headers, which is cheap when the header holds the
+ * member size in a BGZF "BC" extra field. Other members are inflated once up
+ * front to find their end. Workers claim runs of consecutive members, inflate
+ * them with their own Inflater into a reused direct buffer and process the
+ * complete lines of it. The runs of all files are claimed from one cursor, so
+ * the workers stay busy across file boundaries. The partial lines at both ends
+ * of a run are carried over and processed once all runs are done.
+ *
+ * A run has to decompress to less than 2GB, so a single member gzip file of a
+ * large measurements file has to be converted to block gzip first.
+ */
+public class BlockGzipReader {
+    private static final int MEMBERS_PER_RUN = 64;
+    private static final int INPUT_SIZE = 256 * 1024;
+    private static final int HEADER_SIZE = 10;
+    private static final int TRAILER_SIZE = 8;
+    private static final int FHCRC = 2;
+    private static final int FEXTRA = 4;
+    private static final int FNAME = 8;
+    private static final int FCOMMENT = 16;
+    private static final ValueLayout.OfShort SHORT = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    private final List<MemorySegment> files;
+    private final int workers;
+    // start of the deflate data and end of every member, per file
+    private final long[][] dataStarts;
+    private final long[][] ends;
+    // runs of all files in file order
+    private final List<Run> runs;
+
+    /**
+     * @param file -- mapped gzip file, see FastFiles.mapFile
+     * @param workers -- number of worker threads
+     */
+    public BlockGzipReader(final MemorySegment file, final int workers) {
+        this(List.of(file), workers);
+    }
+
+    /**
+     * @param files -- mapped gzip files, see FastFiles.mapFile
+     * @param workers -- number of worker threads
+     */
+    public BlockGzipReader(final List<MemorySegment> files, final int workers) {
+        this.files = files;
+        this.workers = workers;
+        this.dataStarts = new long[files.size()][];
+        this.ends = new long[files.size()][];
+        this.runs = new ArrayList<>();
+
+        final Inflater inflater = new Inflater(true);
+        final byte[] input = new byte[INPUT_SIZE];
+        final ByteBuffer discard = ByteBuffer.allocate(INPUT_SIZE);
+        try {
+            for (int f = 0; f < files.size(); f++) {
+                final MemorySegment file = files.get(f);
+                final List<long[]> members = new ArrayList<>();
+                long offset = 0;
+                while (offset < file.byteSize()) {
+                    final long[] member = locate(file, offset, inflater, input, discard);
+                    members.add(member);
+                    offset = member[1];
+                }
+                this.dataStarts[f] = members.stream().mapToLong(member -> member[0]).toArray();
+                this.ends[f] = members.stream().mapToLong(member -> member[1]).toArray();
+                for (int first = 0; first < members.size(); first += MEMBERS_PER_RUN) {
+                    this.runs.add(new Run(f, first, Math.min(members.size(), first + MEMBERS_PER_RUN)));
+                }
+            }
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Whether the segment starts like a gzip file.
+     */
+    public static boolean isGzip(final MemorySegment segment) {
+        return segment.byteSize() >= HEADER_SIZE && segment.get(ValueLayout.JAVA_BYTE, 0) == (byte) 0x1f
+                && segment.get(ValueLayout.JAVA_BYTE, 1) == (byte) 0x8b;
+    }
+
+    /**
+     * Whether the file starts like a gzip file.
+     */
+    public static boolean isGzip(final Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            final byte[] magic = in.readNBytes(HEADER_SIZE);
+            return isGzip(MemorySegment.ofArray(magic));
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Processes all files and returns the state of every worker, plus one state
+     * holding the lines which span two runs.
+     *
+     * @param workerState -- creates the state a worker reuses for all its runs
+     * @param processor -- processes line aligned, decompressed data into a state
+     * @return one state per worker and one for the carried over lines
+     */
+    public <T> List<T> run(final Supplier<T> workerState, final BiConsumer<T, MemorySegment> processor) {
+        final int runs = this.runs.size();
+        final Fragments[] fragments = new Fragments[runs];
+        final AtomicInteger nextRun = new AtomicInteger();
+        final List<T> states = new ArrayList<>(this.workers + 1);
+        final List<Thread> threads = new ArrayList<>(this.workers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < this.workers; i++) {
+            final T state = workerState.get();
+            states.add(state);
+            threads.add(Thread.ofPlatform().name("gzip-worker-" + i).start(() -> {
+                final Inflater inflater = new Inflater(true);
+                final byte[] input = new byte[INPUT_SIZE];
+                ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+                try {
+                    int run;
+                    while ((run = nextRun.getAndIncrement()) < runs) {
+                        final Run members = this.runs.get(run);
+                        final long size = this.inflatedSize(members);
+                        if (size > Integer.MAX_VALUE) {
+                            throw new IllegalStateException("Gzip members inflate to more than 2GB, use block gzip");
+                        }
+                        if (buffer.capacity() < size) {
+                            buffer = ByteBuffer.allocateDirect((int) size);
+                        }
+                        final MemorySegment data = this.inflate(inflater, input, buffer.clear(), members);
+                        fragments[run] = Fragments.split(data, members.first() == 0);
+                        if (fragments[run].hasLines()) {
+                            processor.accept(state, data.asSlice(fragments[run].linesStart, fragments[run].linesEnd - fragments[run].linesStart));
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+                finally {
+                    inflater.end();
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for gzip workers", e);
+            }
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("Gzip worker failed", failure.get());
+        }
+
+        // glue the tail of every run to the head of the next one of the same file
+        final T carried = workerState.get();
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int run = 0; run < runs; run++) {
+            if (run > 0 && this.runs.get(run).first() == 0 && line.size() > 0) {
+                // the last line of the previous file
+                processor.accept(carried, MemorySegment.ofArray(line.toByteArray()));
+                line.reset();
+            }
+            line.writeBytes(fragments[run].head);
+            if (fragments[run].hasLines()) {
+                if (line.size() > 0) {
+                    processor.accept(carried, MemorySegment.ofArray(line.toByteArray()));
+                }
+                line.reset();
+                line.writeBytes(fragments[run].tail);
+            }
+        }
+        if (line.size() > 0) {
+            processor.accept(carried, MemorySegment.ofArray(line.toByteArray()));
+        }
+        states.add(carried);
+        return states;
+    }
+
+    /**
+     * Sum of the ISIZE trailer fields of the members, the size of their data
+     * modulo 2^32.
+     */
+    private long inflatedSize(final Run run) {
+        final MemorySegment file = this.files.get(run.file());
+        long size = 0;
+        for (int member = run.first(); member < run.last(); member++) {
+            size += Integer.toUnsignedLong(file.get(INT, this.ends[run.file()][member] - Integer.BYTES));
+        }
+        return size;
+    }
+
+    private MemorySegment inflate(final Inflater inflater, final byte[] input, final ByteBuffer buffer, final Run run) {
+        final MemorySegment file = this.files.get(run.file());
+        for (int member = run.first(); member < run.last(); member++) {
+            inflateMember(inflater, file, this.dataStarts[run.file()][member], this.ends[run.file()][member] - TRAILER_SIZE, input, buffer, false);
+        }
+        return MemorySegment.ofBuffer(buffer.flip());
+    }
+
+    /**
+     * Inflates the deflate data of one member into the output and returns where
+     * the data ended. The mapped file is copied into the input array piece by
+     * piece, as the Inflater doesn't accept buffers of a shared arena.
+     *
+     * @param limit -- end of the data, or of the file when it is unknown
+     * @param discard -- whether to overwrite the output, to only find the end
+     */
+    private static long inflateMember(final Inflater inflater, final MemorySegment file, final long dataStart, final long limit, final byte[] input,
+                                      final ByteBuffer output, final boolean discard) {
+        inflater.reset();
+        long fed = dataStart;
+        try {
+            while (!inflater.finished()) {
+                if (inflater.needsInput()) {
+                    if (fed >= limit) {
+                        throw new IllegalStateException("Truncated gzip member at offset " + dataStart);
+                    }
+                    final int length = (int) Math.min(input.length, limit - fed);
+                    MemorySegment.copy(file, ValueLayout.JAVA_BYTE, fed, input, 0, length);
+                    inflater.setInput(input, 0, length);
+                    fed += length;
+                }
+                if (discard) {
+                    output.clear();
+                }
+                if (inflater.inflate(output) == 0 && !inflater.finished() && (inflater.needsDictionary() || !output.hasRemaining())) {
+                    throw new IllegalStateException("Corrupt gzip member at offset " + dataStart);
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt gzip member at offset " + dataStart, e);
+        }
+        return fed - inflater.getRemaining();
+    }
+
+    /**
+     * Parses the member header at offset and returns the start of its deflate
+     * data and its end.
+     */
+    private static long[] locate(final MemorySegment file, final long offset, final Inflater inflater, final byte[] input, final ByteBuffer discard) {
+        if (!isGzip(file.asSlice(offset)) || file.get(ValueLayout.JAVA_BYTE, offset + 2) != 8) {
+            throw new IllegalStateException("No gzip member at offset " + offset);
+        }
+        final int flags = file.get(ValueLayout.JAVA_BYTE, offset + 3);
+        long idx = offset + HEADER_SIZE;
+        long blockSize = -1;
+        if ((flags & FEXTRA) != 0) {
+            final int extraLength = Short.toUnsignedInt(file.get(SHORT, idx));
+            idx += Short.BYTES;
+            final long extraEnd = idx + extraLength;
+            for (long field = idx; field + 4 <= extraEnd;) {
+                final int fieldLength = Short.toUnsignedInt(file.get(SHORT, field + 2));
+                if (file.get(ValueLayout.JAVA_BYTE, field) == 'B' && file.get(ValueLayout.JAVA_BYTE, field + 1) == 'C' && fieldLength == 2) {
+                    // BGZF: total member size - 1
+                    blockSize = Short.toUnsignedInt(file.get(SHORT, field + 4)) + 1L;
+                }
+                field += 4 + fieldLength;
+            }
+            idx = extraEnd;
+        }
+        if ((flags & FNAME) != 0) {
+            idx = skipZeroTerminated(file, idx);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            idx = skipZeroTerminated(file, idx);
+        }
+        if ((flags & FHCRC) != 0) {
+            idx += Short.BYTES;
+        }
+
+        if (blockSize > 0) {
+            return new long[]{ idx, offset + blockSize };
+        }
+        // no size field, inflate the member once to find its end
+        final long dataEnd = inflateMember(inflater, file, idx, file.byteSize(), input, discard, true);
+        return new long[]{ idx, dataEnd + TRAILER_SIZE };
+    }
+
+    private static long skipZeroTerminated(final MemorySegment file, long idx) {
+        while (file.get(ValueLayout.JAVA_BYTE, idx) != 0) {
+            idx++;
+        }
+        return idx + 1;
+    }
+
+    /**
+     * Consecutive members first to last (exclusive) of a file, claimed by a
+     * worker as a whole.
+     */
+    private record Run(int file, int first, int last) {
+    }
+
+    /**
+     * Decompressed data of a run split into the partial line at its start, the
+     * range of its complete lines and the partial line at its end. The partial
+     * lines are copied, as the data is overwritten by the next run. Without a
+     * new line the whole run is the head.
+     */
+    private record Fragments(byte[] head, long linesStart, long linesEnd, byte[] tail) {
+
+        static Fragments split(final MemorySegment data, final boolean firstRun) {
+            final long linesEnd = FastFiles.completeLinesEnd(data);
+            if (linesEnd == 0) {
+                return new Fragments(data.toArray(ValueLayout.JAVA_BYTE), -1, -1, new byte[0]);
+            }
+            // the first run starts with a complete line, the others continue the line of the previous run
+            final long linesStart = firstRun ? 0 : DelimiterScanner.indexOf(data, 0, data.byteSize(), DelimiterScanner.NEW_LINE) + 1;
+            return new Fragments(data.asSlice(0, linesStart).toArray(ValueLayout.JAVA_BYTE), linesStart, linesEnd,
+                    data.asSlice(linesEnd).toArray(ValueLayout.JAVA_BYTE));
+        }
+
+        boolean hasLines() {
+            return this.linesStart >= 0;
+        }
+    }
+}
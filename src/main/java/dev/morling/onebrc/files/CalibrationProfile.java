@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Chunk sizes calibrated by earlier runs, persisted per host so a run starts
+ * at the chunk size that worked before instead of adjusting to it again.
+ *
+ * One properties file can hold the profiles of many hosts, e.g. a profile in
+ * a shared home directory. A host is identified by its name, processor count
+ * and page size, so a resized machine is calibrated again.
+ */
+public class CalibrationProfile {
+    private final Path file;
+    private final String host;
+    private final Properties properties;
+
+    private CalibrationProfile(final Path file, final String host, final Properties properties) {
+        this.file = file;
+        this.host = host;
+        this.properties = properties;
+    }
+
+    /**
+     * Loads the profiles, a missing file has none.
+     *
+     * @param file -- file written by save
+     * @return the profiles, with this host selected
+     */
+    public static CalibrationProfile load(final Path file) {
+        final Properties properties = new Properties();
+        try (Reader in = Files.newBufferedReader(file)) {
+            properties.load(in);
+        }
+        catch (NoSuchFileException e) {
+            // not calibrated yet
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new CalibrationProfile(file, hostKey(), properties);
+    }
+
+    /**
+     * Returns the calibrated chunk size of this host, 0 when there is none.
+     */
+    public long chunkSize() {
+        try {
+            return Long.parseLong(this.properties.getProperty(this.host + ".chunkSize", "0"));
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Stores the chunk size and throughput a run ended with for this host. The
+     * profile is written to a temporary file first, so a crash never leaves a
+     * broken profile behind.
+     *
+     * @param tuning -- tuning of the finished run
+     */
+    public void save(final ChunkTuning tuning) {
+        if (tuning.bytesPerSecond() == 0) {
+            // nothing was processed, keep the last calibration
+            return;
+        }
+        this.properties.setProperty(this.host + ".chunkSize", Long.toString(tuning.chunkSize()));
+        this.properties.setProperty(this.host + ".workers", Integer.toString(tuning.workers()));
+        this.properties.setProperty(this.host + ".bytesPerSecond", Long.toString(tuning.bytesPerSecond()));
+
+        final Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp)) {
+                this.properties.store(out, "1BRC calibration, per host chunk size and worker throughput");
+            }
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static String hostKey() {
+        String name;
+        try {
+            name = InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e) {
+            name = "localhost";
+        }
+        return name + "-" + Runtime.getRuntime().availableProcessors() + "cpu-" + ChunkTuning.systemPageSize();
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Runs a fixed number of platform worker threads over one or more mapped files.
+ * Workers claim byte ranges through a shared AtomicLong cursor until the files
+ * are exhausted, so a fast worker simply claims more ranges than a slow one.
+ *
+ * Ranges shrink towards the end of the input so all workers finish at about
+ * the same time. Claimed ranges are raw byte offsets, a range owns every line
+ * which starts inside of it, so workers never need to coordinate on line
+ * boundaries. Several files are scheduled as if they were concatenated, but a
+ * range never crosses the end of a file, so small files don't need a worker of
+ * their own and every chunk still lies within a single file.
+ *
+ * The chunk size comes from a ChunkTuning, every processed chunk is reported
+ * to it so an adaptive tuning can adjust the size of the following chunks.
+ */
+public class ChunkScheduler {
+    private static final long MIN_CHUNK_SIZE = 256 * 1024L;
+
+    private final MemorySegment[] files;
+    // offset of every file in the concatenation, and the total size at the end
+    private final long[] starts;
+    private final long size;
+    private final ChunkTuning tuning;
+    private final AtomicLong cursor;
+
+    /**
+     * @param file -- mapped file, see FastFiles.mapFile
+     * @param chunk_size -- max size of a claimed range
+     * @param workers -- number of worker threads
+     */
+    public ChunkScheduler(final MemorySegment file, final long chunk_size, final int workers) {
+        this(List.of(file), chunk_size, workers);
+    }
+
+    /**
+     * @param files -- mapped files, see FastFiles.mapFile
+     * @param chunk_size -- max size of a claimed range
+     * @param workers -- number of worker threads
+     */
+    public ChunkScheduler(final List<MemorySegment> files, final long chunk_size, final int workers) {
+        this(files, ChunkTuning.fixed(chunk_size, workers));
+    }
+
+    /**
+     * @param files -- mapped files, see FastFiles.mapFile
+     * @param tuning -- chunk size and number of worker threads
+     */
+    public ChunkScheduler(final List<MemorySegment> files, final ChunkTuning tuning) {
+        this.files = files.toArray(MemorySegment[]::new);
+        this.starts = new long[this.files.length + 1];
+        for (int i = 0; i < this.files.length; i++) {
+            this.starts[i + 1] = this.starts[i] + this.files[i].byteSize();
+        }
+        this.size = this.starts[this.files.length];
+        this.tuning = tuning;
+        this.cursor = new AtomicLong();
+    }
+
+    /**
+     * Processes the whole file and returns the state of every worker.
+     *
+     * @param workerState -- creates the state a worker reuses for all its chunks
+     * @param processor -- processes a line aligned chunk into a worker state
+     * @return one state per worker
+     */
+    public <T> List<T> run(final Supplier<T> workerState, final BiConsumer<T, MemorySegment> processor) {
+        final int workers = this.tuning.workers();
+        final List<T> states = new ArrayList<>(workers);
+        final List<Thread> threads = new ArrayList<>(workers);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for (int i = 0; i < workers; i++) {
+            final T state = workerState.get();
+            states.add(state);
+            threads.add(Thread.ofPlatform().name("chunk-worker-" + i).start(() -> {
+                try {
+                    MemorySegment chunk;
+                    while ((chunk = this.claim()) != null) {
+                        final long start = System.nanoTime();
+                        processor.accept(state, chunk);
+                        this.tuning.record(chunk.byteSize(), System.nanoTime() - start);
+                    }
+                }
+                catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for chunk workers", e);
+            }
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Chunk worker failed", failure.get());
+        }
+        return states;
+    }
+
+    /**
+     * Claims the next range and returns the lines starting in it, or null when
+     * all files are exhausted.
+     */
+    MemorySegment claim() {
+        while (true) {
+            final long start = this.cursor.get();
+            if (start >= this.size) {
+                return null;
+            }
+
+            final int fileIdx = this.fileOf(start);
+            final long fileStart = this.starts[fileIdx];
+            final long end = Math.min(this.starts[fileIdx + 1], start + this.nextChunkSize(this.size - start));
+            if (this.cursor.compareAndSet(start, end)) {
+                final MemorySegment file = this.files[fileIdx];
+                final long chunkStart = FastFiles.lineStart(file, start - fileStart);
+                final long chunkEnd = FastFiles.lineStart(file, end - fileStart);
+                if (chunkStart >= chunkEnd) {
+                    // a single line spans the whole range, it belongs to an earlier range
+                    continue;
+                }
+                return file.asSlice(chunkStart, chunkEnd - chunkStart);
+            }
+        }
+    }
+
+    /**
+     * Returns the index of the file holding an offset of the concatenation,
+     * skipping empty files.
+     */
+    private int fileOf(final long offset) {
+        final int idx = Arrays.binarySearch(this.starts, offset);
+        if (idx < 0) {
+            return -idx - 2;
+        }
+        // an exact match is the start of a file, later empty files start at the same offset
+        int fileIdx = idx;
+        while (this.starts[fileIdx + 1] == offset) {
+            fileIdx++;
+        }
+        return fileIdx;
+    }
+
+    /**
+     * Hands out full chunks while there is plenty of work left, then shrinks them
+     * so the last ranges are spread over all workers.
+     */
+    private long nextChunkSize(final long remaining) {
+        return Math.min(this.tuning.chunkSize(), Math.max(MIN_CHUNK_SIZE, remaining / (this.tuning.workers() * 4L)));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Chunk size and worker count of a run, chosen from the input size, the
+ * available processors and the page size instead of constants tuned for one
+ * machine.
+ *
+ * The chunk size starts at an even share of the input (or at the calibrated
+ * size of this host) and is adjusted while the run goes on: every finished
+ * chunk reports its size and time, and the chunk size moves towards what a
+ * worker processes in TARGET_CHUNK_NANOS. The tuned size is a multiple of the
+ * page size, so a chunk spans whole pages where it can. Chunks still end at a
+ * line, and the scheduler shrinks them near the tail, so neighbouring chunks
+ * may share a page.
+ */
+public class ChunkTuning {
+    private static final long MIN_CHUNK_SIZE = 1024 * 1024L;
+    private static final long MAX_CHUNK_SIZE = 64 * 1024 * 1024L;
+    // long enough to make claiming a chunk negligible, short enough to balance the tail
+    private static final long TARGET_CHUNK_NANOS = 20_000_000L;
+    private static final int CHUNKS_PER_WORKER = 8;
+    private static final long DEFAULT_PAGE_SIZE = 4096;
+
+    private final long pageSize;
+    private final int workers;
+    private final boolean adaptive;
+    private final AtomicLong chunkSize;
+    private final LongAdder bytes;
+    private final LongAdder nanos;
+
+    private ChunkTuning(final long pageSize, final int workers, final long chunkSize, final boolean adaptive) {
+        this.pageSize = pageSize;
+        this.workers = workers;
+        this.adaptive = adaptive;
+        this.chunkSize = new AtomicLong(chunkSize);
+        this.bytes = new LongAdder();
+        this.nanos = new LongAdder();
+    }
+
+    /**
+     * Tuning which never changes, e.g. for benchmarks sweeping the chunk size.
+     *
+     * @param chunkSize -- max chunk size
+     * @param workers -- number of worker threads
+     */
+    public static ChunkTuning fixed(final long chunkSize, final int workers) {
+        return new ChunkTuning(1, workers, chunkSize, false);
+    }
+
+    /**
+     * Picks the chunk size and worker count for an input. Small inputs get fewer
+     * workers, so every worker has at least a minimal chunk to process.
+     *
+     * @param inputSize -- bytes to process
+     * @param maxWorkers -- upper bound of the worker count, e.g. the available processors
+     * @param calibratedChunkSize -- chunk size calibrated on this host, 0 if there is none
+     * @return an adaptive tuning
+     */
+    public static ChunkTuning forInput(final long inputSize, final int maxWorkers, final long calibratedChunkSize) {
+        final long pageSize = systemPageSize();
+        final int workers = (int) Math.max(1, Math.min(maxWorkers, inputSize / MIN_CHUNK_SIZE));
+        final long chunkSize = calibratedChunkSize > 0 ? calibratedChunkSize : inputSize / ((long) workers * CHUNKS_PER_WORKER);
+        return new ChunkTuning(pageSize, workers, clamp(chunkSize, pageSize), true);
+    }
+
+    public long chunkSize() {
+        return this.chunkSize.get();
+    }
+
+    public int workers() {
+        return this.workers;
+    }
+
+    /**
+     * Records a processed chunk and moves the chunk size a quarter of the way
+     * towards the size a worker processes in TARGET_CHUNK_NANOS at the measured
+     * throughput. Called by the workers, concurrent updates may overwrite each
+     * other, which only slows the adjustment down.
+     *
+     * @param chunkBytes -- size of the chunk
+     * @param chunkNanos -- time it took to process the chunk
+     */
+    public void record(final long chunkBytes, final long chunkNanos) {
+        this.bytes.add(chunkBytes);
+        this.nanos.add(chunkNanos);
+        if (!this.adaptive || chunkNanos <= 0) {
+            return;
+        }
+        final long current = this.chunkSize.get();
+        final long target = (long) ((double) chunkBytes / chunkNanos * TARGET_CHUNK_NANOS);
+        this.chunkSize.set(clamp((current * 3 + target) / 4, this.pageSize));
+    }
+
+    /**
+     * Returns the measured throughput of a single worker in bytes per second, 0
+     * when nothing was recorded.
+     */
+    public long bytesPerSecond() {
+        final long totalNanos = this.nanos.sum();
+        return totalNanos == 0 ? 0 : (long) (this.bytes.sum() * 1e9 / totalNanos);
+    }
+
+    private static long clamp(final long chunkSize, final long pageSize) {
+        final long clamped = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, chunkSize));
+        return Math.max(pageSize, clamped / pageSize * pageSize);
+    }
+
+    /**
+     * Returns the size of the pages backing a file mapping. That is the huge
+     * page size when transparent huge pages are enabled for all mappings, the
+     * 4KB base page size otherwise.
+     */
+    static long systemPageSize() {
+        try {
+            final Path enabled = Path.of("/sys/kernel/mm/transparent_hugepage/enabled");
+            if (Files.isReadable(enabled) && Files.readString(enabled).contains("[always]")) {
+                return Long.parseLong(Files.readString(Path.of("/sys/kernel/mm/transparent_hugepage/hpage_pmd_size")).trim());
+            }
+        }
+        catch (IOException | NumberFormatException e) {
+            // fall back to the base page size
+        }
+        return DEFAULT_PAGE_SIZE;
+    }
+}
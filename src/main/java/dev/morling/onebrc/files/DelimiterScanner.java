@@ -0,0 +1,196 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the ';' and '\n' delimiters of a segment 8 bytes at a time (SWAR).
+ *
+ * scanStation hashes the station name a word at a time while looking for the
+ * ';', and exposes the start, length and hash of the name for the aggregation
+ * code. Use create to get an instance, which returns the Vector API scanner
+ * when it is enabled with -Donebrc.vector=true and jdk.incubator.vector is
+ * available.
+ */
+public class DelimiterScanner {
+    public static final long SEMICOLON = 0x3B3B3B3B3B3B3B3BL;
+    public static final long NEW_LINE = 0x0A0A0A0A0A0A0A0AL;
+
+    private static final ValueLayout.OfLong WORD = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+    private static final long MIX = 0x9E3779B97F4A7C15L;
+
+    private static final boolean VECTOR_ENABLED = Boolean.getBoolean("onebrc.vector")
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+    protected final MemorySegment segment;
+    protected final long limit;
+
+    protected long stationOffset;
+    protected int stationLength;
+    protected int stationHash;
+
+    protected DelimiterScanner(final MemorySegment segment) {
+        this.segment = segment;
+        this.limit = segment.byteSize();
+    }
+
+    /**
+     * Returns a scanner for the segment, using the Vector API when enabled.
+     *
+     * @param segment -- line aligned chunk
+     * @return DelimiterScanner
+     */
+    public static DelimiterScanner create(final MemorySegment segment) {
+        if (VECTOR_ENABLED) {
+            return VectorDelimiterScanner.of(segment);
+        }
+        return new DelimiterScanner(segment);
+    }
+
+    /**
+     * Finds the ';' ending the station name which starts at start, and records
+     * the start, length and hash of the name.
+     *
+     * @param start -- index of the first byte of the line
+     * @return index of the ';'
+     */
+    public long scanStation(final long start) {
+        long hash = 0;
+        long idx = start;
+        while (true) {
+            final long word = readWord(this.segment, idx, this.limit);
+            final long match = matchBits(word, SEMICOLON);
+            if (match != 0) {
+                final long separatorIdx = idx + (Long.numberOfTrailingZeros(match) >>> 3);
+                // keep only the bytes in front of the ';'
+                hash = mix(hash, word & ((match ^ (match - 1)) >>> 8));
+                this.stationOffset = start;
+                this.stationLength = (int) (separatorIdx - start);
+                this.stationHash = finish(hash);
+                return separatorIdx;
+            }
+            hash = mix(hash, word);
+            idx += Long.BYTES;
+            if (idx >= this.limit) {
+                throw new IllegalStateException("No ';' after offset " + start);
+            }
+        }
+    }
+
+    /**
+     * Returns the index right after the next new line, or the end of the
+     * segment if there is none.
+     *
+     * @param from -- index to start searching at
+     */
+    public long nextLine(final long from) {
+        final long newLineIdx = indexOf(this.segment, from, this.limit, NEW_LINE);
+        return newLineIdx < 0 ? this.limit : newLineIdx + 1;
+    }
+
+    public long stationOffset() {
+        return this.stationOffset;
+    }
+
+    public int stationLength() {
+        return this.stationLength;
+    }
+
+    public int stationHash() {
+        return this.stationHash;
+    }
+
+    /**
+     * Returns the index of the first byte matching the pattern in [from, limit),
+     * or -1.
+     *
+     * @param pattern -- the byte to find repeated 8 times, e.g. NEW_LINE
+     */
+    public static long indexOf(final MemorySegment segment, long from, final long limit, final long pattern) {
+        for (; from + Long.BYTES <= limit; from += Long.BYTES) {
+            final long match = matchBits(segment.get(WORD, from), pattern);
+            if (match != 0) {
+                return from + (Long.numberOfTrailingZeros(match) >>> 3);
+            }
+        }
+
+        final byte target = (byte) pattern;
+        for (; from < limit; from++) {
+            if (segment.get(ValueLayout.JAVA_BYTE, from) == target) {
+                return from;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Hashes a station name the same way scanStation does.
+     *
+     * @param segment -- segment holding the name
+     * @param offset -- index of the first byte of the name
+     * @param length -- length of the name in bytes
+     */
+    public static int hash(final MemorySegment segment, final long offset, final int length) {
+        final long end = offset + length;
+        long hash = 0;
+        long idx = offset;
+        for (; idx + Long.BYTES <= end; idx += Long.BYTES) {
+            hash = mix(hash, segment.get(WORD, idx));
+        }
+        // the partial last word is mixed in even when empty, like in scanStation
+        return finish(mix(hash, readWord(segment, idx, end)));
+    }
+
+    /**
+     * Sets the high bit of every byte of the word which equals the pattern byte.
+     * Bytes above a match may be flagged as well, the lowest set bit is always
+     * the first match.
+     */
+    static long matchBits(final long word, final long pattern) {
+        final long input = word ^ pattern;
+        return (input - ONES) & ~input & HIGHS;
+    }
+
+    /**
+     * Reads up to 8 bytes starting at idx, padding with zeros past the limit.
+     */
+    static long readWord(final MemorySegment segment, final long idx, final long limit) {
+        if (idx + Long.BYTES <= limit) {
+            return segment.get(WORD, idx);
+        }
+        long word = 0;
+        for (long i = idx; i < limit; i++) {
+            word |= (segment.get(ValueLayout.JAVA_BYTE, i) & 0xFFL) << ((i - idx) << 3);
+        }
+        return word;
+    }
+
+    private static long mix(final long hash, final long word) {
+        return (hash ^ word) * MIX;
+    }
+
+    private static int finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+}
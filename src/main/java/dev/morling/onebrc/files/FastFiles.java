@@ -17,12 +17,16 @@ package dev.morling.onebrc.files;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Spliterator;
 import java.util.Spliterators;
 import java.util.stream.Stream;
@@ -30,10 +34,14 @@ import java.util.stream.StreamSupport;
 
 public class FastFiles {
 
+    private static final long CHUNK_SIZE = 1024 * 1024 * 64L; // 64MB chuncks
+
     /**
-     * Returns a stream of file chunk ByteBuffers of the file.
+     * Returns a stream of file chunk ByteBuffers of the file. The stream is sized
+     * and splits evenly, so it can be used with parallel().
      * 
      * @param filePath
+     * @param chunk_size -- size of a chunk, 64MB when null
      * @return
      */
     public static Stream<ByteBuffer> readMMapChunks(Path filePath, final Long chunk_size) {
@@ -46,8 +54,7 @@ public class FastFiles {
         }
 
         return StreamSupport
-                .stream(Spliterators.spliteratorUnknownSize(new MMapFileIterator(fc, chunk_size), Spliterator.IMMUTABLE),
-                        false)
+                .stream(new LineRangeSpliterator<>(new MMapChunkSource(fc), (chunk_size != null) ? chunk_size : CHUNK_SIZE), false)
                 .onClose(() -> {
                     try {
                         fc.close();
@@ -59,6 +66,121 @@ public class FastFiles {
 
     }
 
+    /**
+     * Maps the whole file as a single MemorySegment. The mapping is a single mmap
+     * call, is not limited to 2GB, and is unmapped when the arena is closed
+     * instead of by the GC.
+     *
+     * @param filePath
+     * @param arena -- arena owning the mapping, use a shared arena when the
+     *            segment is read from several threads
+     * @return MemorySegment of the whole file
+     */
+    public static MemorySegment mapFile(final Path filePath, final Arena arena) {
+        return mapFile(filePath, 0, arena);
+    }
+
+    /**
+     * Maps the file from offset to its current end, e.g. the part appended since
+     * an earlier run.
+     *
+     * @param filePath
+     * @param offset -- first byte to map, usually a line start
+     * @param arena -- arena owning the mapping
+     * @return MemorySegment of the file from offset, empty when the file is
+     *         not larger than offset
+     */
+    public static MemorySegment mapFile(final Path filePath, final long offset, final Arena arena) {
+        try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            final long size = fc.size();
+            return fc.map(FileChannel.MapMode.READ_ONLY, Math.min(offset, size), Math.max(0, size - offset), arena);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the end of the last complete line of the segment, i.e. the index
+     * after its last new line. A partially written last line is not included.
+     *
+     * @param segment -- mapped file starting at a line start
+     * @return end of the complete lines, 0 when there is no complete line
+     */
+    public static long completeLinesEnd(final MemorySegment segment) {
+        for (long idx = segment.byteSize() - 1; idx >= 0; idx--) {
+            if (segment.get(ValueLayout.JAVA_BYTE, idx) == '\n') {
+                return idx + 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a sized stream of slices of the segment which align on a file line
+     * boundary. Slicing doesn't copy or map anything, so this is cheap compared
+     * to readMMapChunks.
+     *
+     * @param segment -- mapped file, see mapFile
+     * @param chunk_size -- max size of a slice
+     * @return
+     */
+    public static Stream<MemorySegment> segmentChunks(final MemorySegment segment, final long chunk_size) {
+        return StreamSupport.stream(new LineRangeSpliterator<>(new SegmentChunkSource(segment), chunk_size), false);
+    }
+
+    /**
+     * Returns a sized stream of the line aligned slices of several files. The
+     * chunks of all files are located up front, so the stream splits evenly
+     * over all chunks instead of file by file.
+     *
+     * @param segments -- mapped files, see mapFile
+     * @param chunk_size -- max size of a slice
+     * @return
+     */
+    public static Stream<MemorySegment> segmentChunks(final List<MemorySegment> segments, final long chunk_size) {
+        if (segments.size() == 1) {
+            return segmentChunks(segments.get(0), chunk_size);
+        }
+        return segments.stream().flatMap(segment -> segmentChunks(segment, chunk_size)).toList().stream();
+    }
+
+    /**
+     * Returns line aligned slices spread evenly over the files, e.g. to sample
+     * the stations of the input before the whole input is read. Small inputs
+     * are returned whole.
+     *
+     * @param segments -- mapped files, see mapFile
+     * @param samples -- number of slices to take
+     * @param sample_size -- size of a slice, a slice may be shorter at a file end
+     * @return the slices
+     */
+    public static List<MemorySegment> sampleChunks(final List<MemorySegment> segments, final int samples, final long sample_size) {
+        long size = 0;
+        for (MemorySegment segment : segments) {
+            size += segment.byteSize();
+        }
+        if (size <= samples * sample_size) {
+            return segments;
+        }
+
+        final List<MemorySegment> slices = new ArrayList<>(samples);
+        final long stride = size / samples;
+        int fileIdx = 0;
+        long fileStart = 0;
+        for (int i = 0; i < samples; i++) {
+            final long start = i * stride;
+            while (start >= fileStart + segments.get(fileIdx).byteSize()) {
+                fileStart += segments.get(fileIdx++).byteSize();
+            }
+            final MemorySegment slice = lineRange(segments.get(fileIdx), start - fileStart, start - fileStart + sample_size);
+            if (slice.byteSize() > 0) {
+                slices.add(slice);
+            }
+        }
+        return slices;
+    }
+
     /**
      * Returns a Stream of Strings for each line in the byte buffer
      * 
@@ -72,18 +194,16 @@ public class FastFiles {
     }
 
     /**
-     * A iterator which iterates over a file and returns MMaped chuncks of that file
-     * which align on a file line boundary.
+     * Chunks of a file which are mapped one at a time, each chunk is its own
+     * MappedByteBuffer.
      */
-    private static class MMapFileIterator implements Iterator<ByteBuffer> {
-        private static final long CHUNK_SIZE = 1024 * 1024 * 64L; // 64MB chuncks
+    private static class MMapChunkSource implements LineRangeSpliterator.Source<ByteBuffer> {
+        private static final int SCAN_SIZE = 256;
 
-        private final long size;
-        private long currentIdx;
         private final FileChannel fc;
-        private final long chunk_size;
+        private final long size;
 
-        public MMapFileIterator(final FileChannel fc, final Long chunk_size) {
+        public MMapChunkSource(final FileChannel fc) {
             this.fc = fc;
             try {
                 this.size = fc.size();
@@ -91,69 +211,124 @@ public class FastFiles {
             catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
-            this.currentIdx = 0;
-            this.chunk_size = (chunk_size != null) ? chunk_size : CHUNK_SIZE;
         }
 
         @Override
-        public boolean hasNext() {
-            return currentIdx < size;
+        public long size() {
+            return this.size;
         }
 
         /**
-         * Returns the Next MMap File Chunks.
+         * Reads small blocks from the file until the next new line, so the chunk
+         * doesn't need to be mapped to align it.
          */
         @Override
-        public ByteBuffer next() {
-            try {
-                final long chunkSize = Math.min(this.chunk_size, this.size - this.currentIdx);
-                final MappedByteBuffer mappedByteBuffer = fc.map(FileChannel.MapMode.READ_ONLY, currentIdx, chunkSize);
+        public long lineStart(final long offset) {
+            if (offset == 0 || offset >= this.size) {
+                return Math.min(offset, this.size);
+            }
 
-                final long chunkSizeUpdated = this.alignToLine(mappedByteBuffer);
-                currentIdx += chunkSizeUpdated;
+            final ByteBuffer block = ByteBuffer.allocate(SCAN_SIZE);
+            long blockStart = offset - 1;
+            try {
+                while (blockStart < this.size) {
+                    block.clear();
+                    final int read = this.fc.read(block, blockStart);
+                    for (int i = 0; i < read; i++) {
+                        if (block.get(i) == '\n') {
+                            return blockStart + i + 1;
+                        }
+                    }
+                    blockStart += Math.max(read, 1);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return this.size;
+        }
 
-                return mappedByteBuffer;
+        @Override
+        public ByteBuffer chunk(final long start, final long end) {
+            try {
+                return this.fc.map(FileChannel.MapMode.READ_ONLY, start, end - start);
             }
-            catch (IOException ex) {
-                throw new UncheckedIOException(ex);
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
         }
+    }
 
-        /**
-         * Re-algins the byte buffer to end on a new line. This way the consumer doesn't
-         * get a
-         * byte buffer which starts or ends in the middle of a line.
-         * 
-         * @param buffer -- ByteBuffer of file contents
-         * @returns The updated size of the mmap file
-         */
-        private int alignToLine(final ByteBuffer buffer) {
-            // find last new line character
-            int chunkEnd = buffer.limit() - 1;
-            while (true) {
-                final char currentChar = (char) buffer.get(chunkEnd);
-                if (currentChar == '\n' || currentChar == '\r') {
-                    break;
-                }
+    /**
+     * Chunks of a mapped file segment, each chunk is a slice of the segment.
+     */
+    private static class SegmentChunkSource implements LineRangeSpliterator.Source<MemorySegment> {
+        private final MemorySegment segment;
 
-                chunkEnd--;
-            }
+        public SegmentChunkSource(final MemorySegment segment) {
+            this.segment = segment;
+        }
 
-            buffer.limit(chunkEnd + 1); // + 1 since its 0 based size
-            return chunkEnd + 1;
+        @Override
+        public long size() {
+            return this.segment.byteSize();
+        }
+
+        @Override
+        public long lineStart(final long offset) {
+            return FastFiles.lineStart(this.segment, offset);
+        }
+
+        @Override
+        public MemorySegment chunk(final long start, final long end) {
+            return this.segment.asSlice(start, end - start);
         }
     }
 
+    /**
+     * Returns the lines of the segment which start in [start, end). Ranges which
+     * split the file at arbitrary offsets therefore get every line exactly once,
+     * no matter how the offsets fall on the lines.
+     *
+     * @param segment -- mapped file
+     * @param start -- first offset of the range
+     * @param end -- end of the range, may be past the end of the segment
+     * @return line aligned slice of the segment
+     */
+    public static MemorySegment lineRange(final MemorySegment segment, final long start, final long end) {
+        final long from = lineStart(segment, start);
+        final long to = lineStart(segment, end);
+        return segment.asSlice(from, Math.max(0, to - from));
+    }
+
+    /**
+     * Returns the start of the first line which starts at or after offset. The
+     * end of the segment counts as a line start.
+     *
+     * @param segment -- mapped file
+     * @param offset -- any offset in the file
+     */
+    static long lineStart(final MemorySegment segment, final long offset) {
+        final long size = segment.byteSize();
+        if (offset == 0 || offset >= size) {
+            return Math.min(offset, size);
+        }
+        final long newLineIdx = DelimiterScanner.indexOf(segment, offset - 1, size, DelimiterScanner.NEW_LINE);
+        return newLineIdx < 0 ? size : newLineIdx + 1;
+    }
+
     /**
      * Iterator to take a byte buffer and return the next line (until \n)
      */
     private static class ByteBufferLineIterator implements Iterator<String> {
         private final ByteBuffer buffer;
+        private final DelimiterScanner scanner;
         private int currentIdx;
         private int maxSize;
 
         public ByteBufferLineIterator(final ByteBuffer buffer) {
             this.buffer = buffer;
+            this.scanner = DelimiterScanner.create(MemorySegment.ofBuffer(buffer));
             this.currentIdx = 0;
             this.maxSize = buffer.limit();
         }
@@ -165,20 +340,13 @@ public class FastFiles {
 
         @Override
         public String next() {
-            final byte[] bytes = new byte[48];
-
-            int currentLineIdx = 0;
-            while (currentLineIdx + this.currentIdx < this.maxSize) {
-                final char currentChar = (char) buffer.get(currentLineIdx + this.currentIdx);
-                bytes[currentLineIdx] = (byte) currentChar;
-                currentLineIdx++;
-                if (currentChar == '\n') {
-                    break;
-                }
-            }
+            // the line includes its new line character
+            final int lineEnd = (int) this.scanner.nextLine(this.currentIdx);
+            final byte[] bytes = new byte[lineEnd - this.currentIdx];
+            buffer.get(this.currentIdx, bytes);
 
-            final String line = new String(bytes, 0, currentLineIdx);
-            this.currentIdx += currentLineIdx;
+            final String line = new String(bytes);
+            this.currentIdx = lineEnd;
 
             return line;
         }
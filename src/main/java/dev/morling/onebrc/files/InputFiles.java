@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Resolves the input arguments of a run into a list of files. An argument is
+ * a file, a directory whose regular files are all read (recursively), or a
+ * glob like data/2024-*.txt for shells which don't expand it themselves.
+ */
+public class InputFiles {
+    private static final String GLOB_CHARS = "*?[{";
+
+    private InputFiles() {
+    }
+
+    /**
+     * Returns the absolute paths of the files of all inputs, without
+     * duplicates. Files found in a directory or by a glob are sorted by path.
+     *
+     * @param inputs -- files, directories or globs
+     * @return the files to read
+     * @throws IllegalArgumentException when an input matches no file
+     */
+    public static List<Path> resolve(final List<String> inputs) {
+        final Set<Path> files = new LinkedHashSet<>();
+        for (String input : inputs) {
+            final List<Path> resolved = resolve(input);
+            if (resolved.isEmpty()) {
+                throw new IllegalArgumentException("No measurement files found for " + input);
+            }
+            // the same file may be reached through different inputs, e.g. a directory and a glob
+            resolved.forEach(file -> files.add(file.toAbsolutePath().normalize()));
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static List<Path> resolve(final String input) {
+        final int globIdx = indexOfGlob(input);
+        if (globIdx < 0) {
+            final Path path = Path.of(input);
+            if (Files.isDirectory(path)) {
+                return walk(path, p -> true);
+            }
+            return Files.exists(path) ? List.of(path) : List.of();
+        }
+
+        // walk the directory before the first glob component and match the paths below it
+        final int separatorIdx = input.lastIndexOf('/', globIdx);
+        final Path base = separatorIdx < 0 ? Path.of(".") : Path.of(separatorIdx == 0 ? "/" : input.substring(0, separatorIdx));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + input.substring(separatorIdx + 1));
+        return Files.isDirectory(base) ? walk(base, path -> matcher.matches(base.relativize(path))) : List.of();
+    }
+
+    private static List<Path> walk(final Path directory, final Predicate<Path> filter) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            return paths.filter(Files::isRegularFile).filter(filter).sorted().toList();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int indexOfGlob(final String input) {
+        for (int i = 0; i < input.length(); i++) {
+            if (GLOB_CHARS.indexOf(input.charAt(i)) >= 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * Spliterator over the chunks of a file, sized by the number of chunks.
+ *
+ * Chunk i owns every line which starts in [i * chunk_size, (i + 1) * chunk_size),
+ * so the number of chunks is known up front and every chunk (and every split)
+ * starts and ends on a line boundary. trySplit halves the remaining chunks,
+ * which lets parallel streams balance the work like they do for an array.
+ * A chunk whose range lies entirely inside one long line is empty.
+ */
+class LineRangeSpliterator<T> implements Spliterator<T> {
+
+    /**
+     * File the chunks are read from.
+     */
+    interface Source<T> {
+        long size();
+
+        /**
+         * Returns the start of the first line starting at or after offset.
+         */
+        long lineStart(long offset);
+
+        /**
+         * Returns the chunk of the lines in [start, end).
+         */
+        T chunk(long start, long end);
+    }
+
+    private final Source<T> source;
+    private final long chunk_size;
+    private long index;
+    private final long fence;
+
+    LineRangeSpliterator(final Source<T> source, final long chunk_size) {
+        this(source, chunk_size, 0, (source.size() + chunk_size - 1) / chunk_size);
+    }
+
+    private LineRangeSpliterator(final Source<T> source, final long chunk_size, final long index, final long fence) {
+        this.source = source;
+        this.chunk_size = chunk_size;
+        this.index = index;
+        this.fence = fence;
+    }
+
+    @Override
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        if (this.index >= this.fence) {
+            return false;
+        }
+
+        final long start = this.source.lineStart(this.index * this.chunk_size);
+        final long end = this.source.lineStart(Math.min((this.index + 1) * this.chunk_size, this.source.size()));
+        this.index++;
+        action.accept(this.source.chunk(start, Math.max(start, end)));
+        return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        final long mid = (this.index + this.fence) >>> 1;
+        if (mid <= this.index) {
+            return null;
+        }
+
+        final Spliterator<T> prefix = new LineRangeSpliterator<>(this.source, this.chunk_size, this.index, mid);
+        this.index = mid;
+        return prefix;
+    }
+
+    @Override
+    public long estimateSize() {
+        return this.fence - this.index;
+    }
+
+    @Override
+    public int characteristics() {
+        return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED | Spliterator.IMMUTABLE | Spliterator.NONNULL;
+    }
+}
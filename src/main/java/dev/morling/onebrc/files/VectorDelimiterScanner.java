@@ -0,0 +1,80 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteOrder;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * DelimiterScanner which compares a whole vector register of bytes at a time
+ * using jdk.incubator.vector. Falls back to the SWAR scan near the end of the
+ * segment where a full vector can't be read.
+ *
+ * Only loaded through DelimiterScanner.create, so the incubator module is not
+ * needed unless the vector path is enabled.
+ */
+class VectorDelimiterScanner extends DelimiterScanner {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private VectorDelimiterScanner(final MemorySegment segment) {
+        super(segment);
+    }
+
+    static DelimiterScanner of(final MemorySegment segment) {
+        return new VectorDelimiterScanner(segment);
+    }
+
+    @Override
+    public long scanStation(final long start) {
+        final long separatorIdx = this.indexOf(start, (byte) ';');
+        if (separatorIdx < 0) {
+            return super.scanStation(start);
+        }
+
+        this.stationOffset = start;
+        this.stationLength = (int) (separatorIdx - start);
+        this.stationHash = hash(this.segment, start, this.stationLength);
+        return separatorIdx;
+    }
+
+    @Override
+    public long nextLine(final long from) {
+        final long newLineIdx = this.indexOf(from, (byte) '\n');
+        if (newLineIdx < 0) {
+            return super.nextLine(from);
+        }
+        return newLineIdx + 1;
+    }
+
+    /**
+     * Returns the index of the next target byte, or -1 when it isn't found
+     * before the last full vector of the segment.
+     */
+    private long indexOf(long from, final byte target) {
+        final int length = SPECIES.length();
+        for (; from + length <= this.limit; from += length) {
+            final VectorMask<Byte> match = ByteVector.fromMemorySegment(SPECIES, this.segment, from, ByteOrder.LITTLE_ENDIAN).eq(target);
+            if (match.anyTrue()) {
+                return from + match.firstTrue();
+            }
+        }
+        return -1;
+    }
+}
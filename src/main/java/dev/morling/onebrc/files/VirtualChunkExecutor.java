@@ -0,0 +1,79 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.concurrent.StructuredTaskScope.Subtask;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+/**
+ * Processes every chunk on its own virtual thread. At most concurrency chunks
+ * are processed at the same time, the other virtual threads park on a
+ * semaphore, which is cheap for virtual threads.
+ *
+ * The chunk tasks are forked in a StructuredTaskScope, so the results are only
+ * collected once every chunk is done, and the first failure cancels the rest.
+ */
+public class VirtualChunkExecutor {
+    private final int concurrency;
+
+    /**
+     * @param concurrency -- max number of chunks processed at the same time
+     */
+    public VirtualChunkExecutor(final int concurrency) {
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Processes all chunks and returns their results in chunk order.
+     *
+     * @param chunks -- line aligned chunks, see FastFiles.segmentChunks
+     * @param processor -- processes a single chunk
+     * @return one result per chunk
+     */
+    public <T> List<T> run(final Stream<MemorySegment> chunks, final Function<MemorySegment, T> processor) {
+        final Semaphore permits = new Semaphore(this.concurrency);
+        try (var scope = new StructuredTaskScope.ShutdownOnFailure("chunk-workers", Thread.ofVirtual().name("chunk-", 0).factory())) {
+            final List<Subtask<T>> tasks = new ArrayList<>();
+            final Iterator<MemorySegment> chunkIterator = chunks.iterator();
+            while (chunkIterator.hasNext()) {
+                final MemorySegment chunk = chunkIterator.next();
+                tasks.add(scope.fork(() -> {
+                    permits.acquire();
+                    try {
+                        return processor.apply(chunk);
+                    }
+                    finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            scope.join().throwIfFailed(e -> new IllegalStateException("Chunk task failed", e));
+            return tasks.stream().map(Subtask::get).toList();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for chunk tasks", e);
+        }
+    }
+}
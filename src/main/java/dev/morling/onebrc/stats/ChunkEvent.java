@@ -0,0 +1,56 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR event of one aggregated chunk. Only recorded while a flight recording
+ * is running, e.g. with -XX:StartFlightRecording.
+ *
+ * The map time is the time it took to fault the pages of a mapped chunk in,
+ * the parse time the time spent on the then resident lines, so slow storage
+ * and slow parsing can be told apart.
+ */
+@Name("dev.morling.onebrc.Chunk")
+@Label("Chunk")
+@Category("1BRC")
+@Description("A chunk of lines aggregated by a worker")
+public class ChunkEvent extends jdk.jfr.Event {
+
+    @Label("Bytes")
+    @DataAmount
+    public long bytes;
+
+    @Label("Lines")
+    public long lines;
+
+    @Label("Map Time")
+    @Timespan
+    public long mapTime;
+
+    @Label("Parse Time")
+    @Timespan
+    public long parseTime;
+
+    @Label("Worker")
+    public String worker;
+}
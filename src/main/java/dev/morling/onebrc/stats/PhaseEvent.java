@@ -0,0 +1,34 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * JFR event spanning one phase of a run, see Stats.phase.
+ */
+@Name("dev.morling.onebrc.Phase")
+@Label("Phase")
+@Category("1BRC")
+@Description("A phase of the aggregation pipeline, e.g. map, aggregate or print")
+public class PhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    public String phase;
+}
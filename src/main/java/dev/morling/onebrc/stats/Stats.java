@@ -0,0 +1,145 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.stats;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Phase timers and chunk counters of a run, printed as a summary together
+ * with the GC and allocation figures of the JVM since the Stats were created.
+ *
+ * Every phase and chunk is also recorded as a JFR event, so the same numbers
+ * show up in a flight recording without any extra flags.
+ */
+public class Stats {
+    private final long start;
+    // phases are timed on the main thread, repeated phases add up
+    private final Map<String, Long> phaseNanos;
+    private final LongAdder chunks;
+    private final LongAdder bytes;
+    private final LongAdder lines;
+    private final List<GarbageCollectorMXBean> collectors;
+    private final long[] gcCounts;
+    private final long[] gcMillis;
+    private final long allocatedBytes;
+
+    public Stats() {
+        this.start = System.nanoTime();
+        this.phaseNanos = new LinkedHashMap<>();
+        this.chunks = new LongAdder();
+        this.bytes = new LongAdder();
+        this.lines = new LongAdder();
+        this.collectors = ManagementFactory.getGarbageCollectorMXBeans();
+        this.gcCounts = new long[this.collectors.size()];
+        this.gcMillis = new long[this.collectors.size()];
+        for (int i = 0; i < this.collectors.size(); i++) {
+            this.gcCounts[i] = this.collectors.get(i).getCollectionCount();
+            this.gcMillis[i] = this.collectors.get(i).getCollectionTime();
+        }
+        this.allocatedBytes = allocatedBytes();
+    }
+
+    /**
+     * Starts timing a phase, the phase ends when the returned Phase is closed.
+     * Its try-with-resources never references the Phase, callers suppress the
+     * "try" lint warning.
+     *
+     * @param name -- name of the phase, e.g. map or aggregate
+     */
+    public Phase phase(final String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Counts a chunk aggregated by a worker, may be called by any thread.
+     *
+     * @param bytes -- size of the chunk
+     * @param lines -- lines in the chunk
+     */
+    public void chunk(final long bytes, final long lines) {
+        this.chunks.increment();
+        this.bytes.add(bytes);
+        this.lines.add(lines);
+    }
+
+    /**
+     * Prints the phase times, chunk counters, GC pauses and allocations since
+     * the Stats were created.
+     */
+    public void print(final PrintStream out) {
+        out.printf("total         %8d ms%n", millis(System.nanoTime() - this.start));
+        for (Map.Entry<String, Long> phase : this.phaseNanos.entrySet()) {
+            out.printf("  %-11s %8d ms%n", phase.getKey(), millis(phase.getValue()));
+        }
+        out.printf("chunks        %8d, %d bytes, %d lines%n", this.chunks.sum(), this.bytes.sum(), this.lines.sum());
+        for (int i = 0; i < this.collectors.size(); i++) {
+            final GarbageCollectorMXBean collector = this.collectors.get(i);
+            out.printf("gc %-21s %d collections, %d ms%n", collector.getName(),
+                    collector.getCollectionCount() - this.gcCounts[i], collector.getCollectionTime() - this.gcMillis[i]);
+        }
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        out.printf("heap          %d bytes used, %d bytes committed%n", heap.getUsed(), heap.getCommitted());
+        final long allocated = allocatedBytes();
+        if (allocated >= 0 && this.allocatedBytes >= 0) {
+            out.printf("allocated     %d bytes%n", allocated - this.allocatedBytes);
+        }
+    }
+
+    /**
+     * Returns the bytes allocated on the heap by all threads so far, or -1 when
+     * the JVM doesn't track them.
+     */
+    private static long allocatedBytes() {
+        if (ManagementFactory.getThreadMXBean()instanceof com.sun.management.ThreadMXBean threads && threads.isThreadAllocatedMemoryEnabled()) {
+            return threads.getTotalThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    private static long millis(final long nanos) {
+        return nanos / 1_000_000;
+    }
+
+    /**
+     * A running phase, see Stats.phase.
+     */
+    public class Phase implements AutoCloseable {
+        private final String name;
+        private final PhaseEvent event;
+        private final long start;
+
+        private Phase(final String name) {
+            this.name = name;
+            this.event = new PhaseEvent();
+            this.event.phase = name;
+            this.event.begin();
+            this.start = System.nanoTime();
+        }
+
+        @Override
+        public void close() {
+            Stats.this.phaseNanos.merge(this.name, System.nanoTime() - this.start, Long::sum);
+            this.event.commit();
+        }
+    }
+}
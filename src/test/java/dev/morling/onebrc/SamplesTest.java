@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Runs every sample in src/test/resources/samples through the modes of the
+ * command line programs and compares the output with the sample's .out file.
+ * Every run is a JVM of its own, so JVM flags like the Vector API scanner and
+ * the process exit status are covered too.
+ */
+class SamplesTest {
+    private static final Path SAMPLES = Path.of("src/test/resources/samples");
+
+    @TempDir
+    Path tmp;
+
+    static Stream<Path> samples() throws IOException {
+        try (Stream<Path> files = Files.list(SAMPLES)) {
+            return files.filter(file -> file.toString().endsWith(".txt")).sorted().toList().stream();
+        }
+    }
+
+    static Stream<Arguments> modes() throws IOException {
+        final List<Arguments> modes = new ArrayList<>();
+        for (Path sample : samples().toList()) {
+            modes.add(Arguments.of(sample, List.of(), List.of("--executor=threads")));
+            modes.add(Arguments.of(sample, List.of(), List.of("--executor=forkjoin")));
+            modes.add(Arguments.of(sample, List.of(), List.of("--executor=virtual")));
+            modes.add(Arguments.of(sample, List.of(), List.of("--dictionary")));
+            modes.add(Arguments.of(sample, List.of(), List.of("--off-heap")));
+            modes.add(Arguments.of(sample, List.of("--add-modules", "jdk.incubator.vector", "-Donebrc.vector=true"), List.of()));
+        }
+        return modes.stream();
+    }
+
+    @ParameterizedTest(name = "{0} {1} {2}")
+    @MethodSource("modes")
+    void gold(final Path sample, final List<String> jvmArgs, final List<String> args) throws Exception {
+        final List<String> all = new ArrayList<>(args);
+        all.add(sample.toString());
+        assertThat(run(jvmArgs, CalculateAverage_gold.class, all)).isEqualTo(expected(sample));
+    }
+
+    /**
+     * Compresses the sample into members of a few bytes, so lines span members
+     * and member runs.
+     */
+    @ParameterizedTest
+    @MethodSource("samples")
+    void gzip(final Path sample) throws Exception {
+        final byte[] text = Files.readAllBytes(sample);
+        final Path gzip = this.tmp.resolve("measurements.txt.gz");
+        try (OutputStream out = Files.newOutputStream(gzip)) {
+            for (int start = 0; start < text.length; start += 37) {
+                out.write(gzip(Arrays.copyOfRange(text, start, Math.min(text.length, start + 37))));
+            }
+        }
+        assertThat(run(List.of(), CalculateAverage_gold.class, List.of(gzip.toString()))).isEqualTo(expected(sample));
+    }
+
+    /**
+     * Splits the sample at a line into a gzip and a plain file and a second
+     * gzip file, all read in one run.
+     */
+    @ParameterizedTest
+    @MethodSource("samples")
+    void mixedInputs(final Path sample) throws Exception {
+        final List<String> lines = Files.readAllLines(sample);
+        final int third = lines.size() / 3;
+        final Path first = this.tmp.resolve("first.txt.gz");
+        final Path second = this.tmp.resolve("second.txt");
+        final Path last = this.tmp.resolve("third.txt.gz");
+        Files.write(first, gzip(joinLines(lines.subList(0, third))));
+        Files.write(second, joinLines(lines.subList(third, 2 * third)));
+        Files.write(last, gzip(joinLines(lines.subList(2 * third, lines.size()))));
+
+        final List<String> inputs = List.of(first.toString(), second.toString(), last.toString());
+        assertThat(run(List.of(), CalculateAverage_gold.class, inputs)).isEqualTo(expected(sample));
+    }
+
+    @ParameterizedTest
+    @MethodSource("samples")
+    void columnar(final Path sample) throws Exception {
+        final Path columnar = this.tmp.resolve("measurements.bin");
+        run(List.of(), ConvertMeasurements.class, List.of(sample.toString(), columnar.toString()));
+        assertThat(run(List.of(), CalculateAverage_columnar.class, List.of(columnar.toString()))).isEqualTo(expected(sample));
+    }
+
+    /**
+     * Aggregates the first half of the sample, cut in the middle of a line, and
+     * resumes from the checkpoint once the rest is appended.
+     */
+    @ParameterizedTest
+    @MethodSource("samples")
+    void checkpointResume(final Path sample) throws Exception {
+        final byte[] text = Files.readAllBytes(sample);
+        final Path file = this.tmp.resolve("measurements.txt");
+        final String checkpoint = "--checkpoint=" + this.tmp.resolve("measurements.checkpoint");
+        Files.write(file, Arrays.copyOfRange(text, 0, text.length / 2));
+        run(List.of(), CalculateAverage_gold.class, List.of(checkpoint, file.toString()));
+
+        Files.write(file, Arrays.copyOfRange(text, text.length / 2, text.length), StandardOpenOption.APPEND);
+        assertThat(run(List.of(), CalculateAverage_gold.class, List.of(checkpoint, file.toString()))).isEqualTo(expected(sample));
+    }
+
+    /**
+     * Aggregates three byte ranges of the sample into partials, with range
+     * ends anywhere in a line, and merges them.
+     */
+    @ParameterizedTest
+    @MethodSource("samples")
+    void rangePartials(final Path sample) throws Exception {
+        final long size = Files.size(sample);
+        final long[] cuts = { 0, size / 3, 2 * size / 3, size };
+        final List<String> partials = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            final Path partial = this.tmp.resolve("partial-" + i);
+            run(List.of(), CalculateAverage_gold.class, List.of("--range=" + cuts[i] + ":" + cuts[i + 1], "--partial=" + partial, sample.toString()));
+            partials.add(partial.toString());
+        }
+        assertThat(run(List.of(), MergePartials.class, partials)).isEqualTo(expected(sample));
+    }
+
+    /**
+     * Generates a file with many stations, plain and as block gzip, and
+     * compares the results with one computed line by line. Not with the
+     * baseline, whose double sums round some means of .x5 down.
+     */
+    @Test
+    void generatedMeasurements() throws Exception {
+        run(this.tmp, List.of(), CreateMeasurements.class, List.of("200000", "--seed=1", "--stations=2000", "--threads=4"));
+        run(this.tmp, List.of(), CreateMeasurements.class, List.of("200000", "--seed=1", "--stations=2000", "--threads=4", "--gzip"));
+        final String expected = aggregate(this.tmp.resolve("measurements.txt"));
+
+        assertThat(run(List.of(), CalculateAverage_gold.class, List.of(this.tmp.resolve("measurements.txt").toString()))).isEqualTo(expected);
+        assertThat(run(List.of(), CalculateAverage_gold.class, List.of(this.tmp.resolve("measurements.txt.gz").toString()))).isEqualTo(expected);
+    }
+
+    /**
+     * Reference result of a file, with the mean rounded half up from the exact
+     * sum of tenths.
+     */
+    private static String aggregate(final Path file) throws IOException {
+        // min, max, sum and count in tenths
+        final Map<String, long[]> stations = new TreeMap<>();
+        for (String line : Files.readAllLines(file)) {
+            final int separator = line.indexOf(';');
+            final long tenths = Math.round(Double.parseDouble(line.substring(separator + 1)) * 10);
+            final long[] aggregate = stations.computeIfAbsent(line.substring(0, separator), name -> new long[]{ tenths, tenths, 0, 0 });
+            aggregate[0] = Math.min(aggregate[0], tenths);
+            aggregate[1] = Math.max(aggregate[1], tenths);
+            aggregate[2] += tenths;
+            aggregate[3]++;
+        }
+        final StringJoiner result = new StringJoiner(", ", "{", "}\n");
+        stations.forEach((name, aggregate) -> result.add(name + "=" + tenths(aggregate[0]) + "/"
+                + tenths(Math.floorDiv(2 * aggregate[2] + aggregate[3], 2 * aggregate[3])) + "/" + tenths(aggregate[1])));
+        return result.toString();
+    }
+
+    private static String tenths(final long tenths) {
+        return (tenths < 0 ? "-" : "") + Math.abs(tenths) / 10 + "." + Math.abs(tenths) % 10;
+    }
+
+    private static String expected(final Path sample) throws IOException {
+        final String name = sample.getFileName().toString();
+        return Files.readString(sample.resolveSibling(name.substring(0, name.length() - ".txt".length()) + ".out"));
+    }
+
+    private static byte[] joinLines(final List<String> lines) {
+        final StringBuilder text = new StringBuilder();
+        lines.forEach(line -> text.append(line).append('\n'));
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] gzip(final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(data);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Runs the main class in a new JVM and returns its standard output, fails
+     * unless it exits with 0.
+     */
+    private static String run(final List<String> jvmArgs, final Class<?> main, final List<String> args) throws IOException, InterruptedException {
+        return run(Path.of(""), jvmArgs, main, args);
+    }
+
+    /**
+     * Like run, in the given working directory.
+     */
+    private static String run(final Path directory, final List<String> jvmArgs, final Class<?> main, final List<String> args)
+            throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("--enable-preview");
+        command.addAll(jvmArgs);
+        command.add("--class-path");
+        command.add(classes());
+        command.add(main.getName());
+        command.addAll(args);
+
+        final Process process = new ProcessBuilder(command).directory(directory.toAbsolutePath().toFile()).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final String out = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        assertThat(process.waitFor()).as("exit status of %s", command).isZero();
+        return out;
+    }
+
+    private static String classes() {
+        try {
+            return Path.of(CalculateAverage_gold.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        }
+        catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
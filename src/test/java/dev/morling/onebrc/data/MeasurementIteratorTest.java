@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import dev.morling.onebrc.files.DelimiterScanner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class MeasurementIteratorTest {
+    // long enough for the first line to be parsed by the SWAR path
+    private static final String PADDING = "padding;0.0\n".repeat(2);
+
+    @ParameterizedTest
+    @ValueSource(strings = { "-99.9", "99.9", "-0.0", "0.0", "-1.2", "1.2", "-12.3", "12.3" })
+    void parsesValuesInTheSwarAndTailPath(final String value) {
+        final int tenths = Math.round(Float.parseFloat(value) * 10);
+        // first line is read as a long, the last one byte by byte
+        assertThat(parse("a;" + value + "\n" + PADDING)).first().isEqualTo(new Line("a", tenths));
+        assertThat(parse(PADDING + "a;" + value + "\n")).last().isEqualTo(new Line("a", tenths));
+    }
+
+    @Test
+    void parsesTailLinesShorterThanALong() {
+        assertThat(parse("a;1.0\nb;-2.5\nc;0.1\n")).containsExactly(new Line("a", 10), new Line("b", -25), new Line("c", 1));
+    }
+
+    @Test
+    void parsesStationsLongerThanSeveralWords() {
+        final String station = "x".repeat(49) + "é".repeat(25);
+        final List<Line> lines = parse(station + ";-45.6\n" + PADDING + station + ";7.8\n");
+        assertThat(lines).first().isEqualTo(new Line(station, -456));
+        assertThat(lines).last().isEqualTo(new Line(station, 78));
+    }
+
+    @Test
+    void parsesALastLineWithoutNewLine() {
+        assertThat(parse(PADDING + "a;-3.4")).last().isEqualTo(new Line("a", -34));
+        assertThat(parse("a;5.6")).containsExactly(new Line("a", 56));
+    }
+
+    @Test
+    void parsesCrLfLineEndings() {
+        assertThat(parse("a;1.0\r\nbcdefghijk;-12.0\r\nc;2.3\r\n" + PADDING.replace("\n", "\r\n") + "d;-4.5\r\n"))
+                .startsWith(new Line("a", 10), new Line("bcdefghijk", -120), new Line("c", 23))
+                .endsWith(new Line("d", -45));
+    }
+
+    @Test
+    void returnsNothingForAnEmptySegment() {
+        assertThat(new MeasurementIterator(MemorySegment.ofArray(new byte[0])).hasNext()).isFalse();
+    }
+
+    @Test
+    void hashesStationsLikeDelimiterScannerHash() {
+        for (int length = 1; length <= 40; length++) {
+            final byte[] line = ("s".repeat(length) + ";1.0\n").getBytes(StandardCharsets.UTF_8);
+            final MemorySegment segment = MemorySegment.ofArray(line);
+            final MeasurementIterator measurements = new MeasurementIterator(segment);
+            measurements.next();
+            assertThat(measurements.stationHash()).as("length %d", length).isEqualTo(DelimiterScanner.hash(segment, 0, length));
+        }
+    }
+
+    @Test
+    void skipsFilteredStations() {
+        final StationFilter filter = StationFilter.include(Set.of("b"));
+        final List<Line> lines = new ArrayList<>();
+        final MemorySegment segment = segment("a;1.0\nb;2.0\nc;3.0\nb;-4.0\n");
+        final MeasurementIterator measurements = new MeasurementIterator(segment, filter);
+        while (measurements.hasNext()) {
+            measurements.next();
+            lines.add(line(segment, measurements));
+        }
+        assertThat(lines).containsExactly(new Line("b", 20), new Line("b", -40));
+    }
+
+    record Line(String station, int tenths) {
+    }
+
+    private static List<Line> parse(final String text) {
+        final MemorySegment segment = segment(text);
+        final List<Line> lines = new ArrayList<>();
+        final MeasurementIterator measurements = new MeasurementIterator(segment);
+        while (measurements.hasNext()) {
+            measurements.next();
+            lines.add(line(segment, measurements));
+        }
+        return lines;
+    }
+
+    private static Line line(final MemorySegment segment, final MeasurementIterator measurements) {
+        final byte[] name = segment.asSlice(measurements.stationOffset(), measurements.stationLength()).toArray(ValueLayout.JAVA_BYTE);
+        return new Line(new String(name, StandardCharsets.UTF_8), measurements.tenths());
+    }
+
+    private static MemorySegment segment(final String text) {
+        return MemorySegment.ofArray(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ResultCacheTest {
+
+    @TempDir
+    Path tmp;
+
+    @Test
+    void returnsTheStoredResultUntilTheFileChanges() throws IOException {
+        final Path file = this.tmp.resolve("measurements.txt");
+        Files.writeString(file, "a;1.0\nb;2.0\n");
+        final ResultCache cache = new ResultCache(this.tmp.resolve("cache"), 1024 * 1024);
+        assertThat(cache.lookup("query", List.of(file))).isEmpty();
+
+        cache.store("query", List.of(file), table("a;1.0\nb;2.0\n"));
+        assertThat(cache.lookup("query", List.of(file))).hasValueSatisfying(table -> assertThat(table.size()).isEqualTo(2));
+        assertThat(cache.lookup("other query", List.of(file))).isEmpty();
+
+        Files.writeString(file, "a;1.0\nb;2.0\nc;3.0\n");
+        assertThat(cache.lookup("query", List.of(file))).isEmpty();
+        assertThat(files(this.tmp.resolve("cache"))).isEmpty();
+    }
+
+    @Test
+    void storesQueriesBeyondTheLimitOfWriteUtf() throws IOException {
+        final Path file = this.tmp.resolve("measurements.txt");
+        Files.writeString(file, "a;1.0\n");
+        final ResultCache cache = new ResultCache(this.tmp.resolve("cache"), 1024 * 1024);
+        final String query = "stations=" + "station name,".repeat(20_000);
+
+        cache.store(query, List.of(file), table("a;1.0\n"));
+        assertThat(cache.lookup(query, List.of(file))).isPresent();
+        // no temporary entry is left behind
+        assertThat(files(this.tmp.resolve("cache"))).hasSize(1).allMatch(entry -> entry.toString().endsWith(".1brq"));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntries() throws IOException {
+        final Path file = this.tmp.resolve("measurements.txt");
+        Files.writeString(file, "a;1.0\n");
+        final ResultCache cache = new ResultCache(this.tmp.resolve("cache"), 1);
+        cache.store("first", List.of(file), table("a;1.0\n"));
+        cache.store("second", List.of(file), table("a;1.0\n"));
+        assertThat(files(this.tmp.resolve("cache"))).isEmpty();
+    }
+
+    private static List<Path> files(final Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    private static StationTable table(final String text) {
+        final StationTable table = new StationTable();
+        table.addAll(MemorySegment.ofArray(text.getBytes(StandardCharsets.UTF_8)));
+        return table;
+    }
+}
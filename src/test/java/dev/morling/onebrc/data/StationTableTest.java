@@ -0,0 +1,123 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.data;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import dev.morling.onebrc.files.DelimiterScanner;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class StationTableTest {
+
+    @Test
+    void roundsTheMeanHalfUp() throws IOException {
+        // means of 1.05, -1.05, -0.05 and 0.15
+        assertThat(result(table("a;1.0\na;1.1\nb;-1.0\nb;-1.1\nc;-0.1\nc;0.0\nd;0.1\nd;0.2\n")))
+                .isEqualTo("{a=1.0/1.1/1.1, b=-1.1/-1.0/-1.0, c=-0.1/0.0/0.0, d=0.1/0.2/0.2}\n");
+    }
+
+    @Test
+    void formatsTheExtremes() throws IOException {
+        assertThat(result(table("a;-99.9\na;99.9\nb;-0.0\n"))).isEqualTo("{a=-99.9/0.0/99.9, b=0.0/0.0/0.0}\n");
+    }
+
+    @Test
+    void writesAnEmptyResult() throws IOException {
+        assertThat(result(table(""))).isEqualTo("{}\n");
+    }
+
+    @Test
+    void growsPastItsInitialCapacity() throws IOException {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            text.append("station-").append(i).append(";1.5\n");
+        }
+        final StationTable table = table(text.toString());
+        assertThat(table.size()).isEqualTo(10_000);
+        assertThat(PartitionedMerge.mergeSorted(List.of(table), 4)).hasSize(10_000).containsKey("station-9999");
+    }
+
+    @Test
+    void combinesTablesAndShards() throws IOException {
+        final StationTable first = table("a;1.0\nb;2.0\n");
+        final StationTable second = table("b;4.0\nc;-3.0\n");
+        assertThat(result(List.of(first, second), 3)).isEqualTo("{a=1.0/1.0/1.0, b=2.0/3.0/4.0, c=-3.0/-3.0/-3.0}\n");
+    }
+
+    @Test
+    void findsDictionaryAndOtherStations() throws IOException {
+        final StationDictionary dictionary = StationDictionary.sample(List.of(segment("a;1.0\nb;2.0\n")));
+        final StationTable table = new StationTable(dictionary);
+        table.addAll(segment("b;3.0\nz;-1.0\na;1.0\n"));
+        // reserved stations without measurements are left out
+        assertThat(result(table)).isEqualTo("{a=1.0/1.0/1.0, b=3.0/3.0/3.0, z=-1.0/-1.0/-1.0}\n");
+    }
+
+    @Test
+    void findDoesNotInsert() {
+        final StationTable table = table("a;1.0\n");
+        final MemorySegment b = segment("b");
+        assertThat(table.find(b, 0, 1, DelimiterScanner.hash(b, 0, 1))).isEqualTo(-1);
+        assertThat(table.size()).isEqualTo(1);
+    }
+
+    @Test
+    void formatsPercentiles() throws IOException {
+        final StationTable table = new StationTable(null, true);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 1; i <= 100; i++) {
+            text.append("a;").append(i / 10).append('.').append(i % 10).append('\n');
+        }
+        table.addAll(segment(text.toString()));
+        assertThat(result(table)).isEqualTo("{a=0.1/5.1/10.0/5.0/9.0/9.9}\n");
+    }
+
+    @Test
+    void refusesPercentilesOfAStationWithoutMeasurements() {
+        final HistogramStore histograms = new HistogramStore(1);
+        assertThatThrownBy(() -> histograms.format(0, ByteBuffer.allocate(64))).isInstanceOf(IllegalStateException.class);
+    }
+
+    private static StationTable table(final String text) {
+        final StationTable table = new StationTable();
+        table.addAll(segment(text));
+        return table;
+    }
+
+    private static String result(final StationTable... tables) throws IOException {
+        return result(List.of(tables), 1);
+    }
+
+    private static String result(final List<StationTable> tables, final int shards) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PartitionedMerge.writeSorted(tables, shards, Channels.newChannel(out));
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static MemorySegment segment(final String text) {
+        return MemorySegment.ofArray(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
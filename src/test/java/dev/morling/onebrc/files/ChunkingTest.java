@@ -0,0 +1,103 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc.files;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Every way of cutting the input into chunks has to return every line
+ * exactly once, in line aligned chunks.
+ */
+class ChunkingTest {
+    private static final int LINES = 20_000;
+    private static final MemorySegment TEXT = text();
+
+    @Test
+    void schedulerClaimsEveryLineOnce() {
+        final MemorySegment second = MemorySegment.ofArray("s;1.0\nss;2.0\n".getBytes(StandardCharsets.UTF_8));
+        final List<AtomicLong> lines = new ChunkScheduler(List.of(TEXT, second), 1000, 4).run(AtomicLong::new,
+                (count, chunk) -> count.addAndGet(lines(chunk)));
+        assertThat(lines).hasSize(4);
+        assertThat(lines.stream().mapToLong(AtomicLong::get).sum()).isEqualTo(LINES + 2);
+    }
+
+    @Test
+    void segmentChunksHoldEveryLineOnce() {
+        assertThat(FastFiles.segmentChunks(TEXT, 1000).parallel().mapToLong(ChunkingTest::lines).sum()).isEqualTo(LINES);
+        assertThat(FastFiles.segmentChunks(TEXT, 1000).count()).isGreaterThan(100);
+    }
+
+    @Test
+    void lineRangesHoldEveryLineOnce() {
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            final long cut = random.nextLong(TEXT.byteSize() + 1);
+            final long lines = lines(FastFiles.lineRange(TEXT, 0, cut)) + lines(FastFiles.lineRange(TEXT, cut, Long.MAX_VALUE));
+            assertThat(lines).as("cut at %d", cut).isEqualTo(LINES);
+        }
+    }
+
+    @Test
+    void findsTheEndOfTheCompleteLines() {
+        final MemorySegment partial = MemorySegment.ofArray("a;1.0\nb;2".getBytes(StandardCharsets.UTF_8));
+        assertThat(FastFiles.completeLinesEnd(partial)).isEqualTo(6);
+        assertThat(FastFiles.completeLinesEnd(partial.asSlice(0, 3))).isZero();
+    }
+
+    @Test
+    void indexOfFindsBytesInAndAfterTheLastWord() {
+        final MemorySegment segment = MemorySegment.ofArray("abcdefghij;\n".getBytes(StandardCharsets.UTF_8));
+        assertThat(DelimiterScanner.indexOf(segment, 0, segment.byteSize(), DelimiterScanner.SEMICOLON)).isEqualTo(10);
+        assertThat(DelimiterScanner.indexOf(segment, 0, segment.byteSize(), DelimiterScanner.NEW_LINE)).isEqualTo(11);
+        assertThat(DelimiterScanner.indexOf(segment, 0, 10, DelimiterScanner.SEMICOLON)).isEqualTo(-1);
+    }
+
+    /**
+     * Counts the lines of a chunk and checks that it ends with a new line. As the
+     * chunks are contiguous, each one also starts at a line.
+     */
+    private static long lines(final MemorySegment chunk) {
+        if (chunk.byteSize() == 0) {
+            return 0;
+        }
+        assertThat(chunk.get(ValueLayout.JAVA_BYTE, chunk.byteSize() - 1)).isEqualTo((byte) '\n');
+        long lines = 0;
+        for (long idx = 0; idx < chunk.byteSize(); idx++) {
+            if (chunk.get(ValueLayout.JAVA_BYTE, idx) == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    private static MemorySegment text() {
+        final Random random = new Random(7);
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            text.append("s".repeat(1 + random.nextInt(60))).append(';').append(random.nextInt(99)).append(".5\n");
+        }
+        return MemorySegment.ofArray(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}